@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Keeps every piece in its own file ("FileName_index") in the peer's directory and combines them
+ * into the complete file once the download is finished.
+ */
+public class ChunkFileStorage implements PieceStorage {
+
+	private final File peerDirectory;  // Directory holding the chunk files and the combined file
+	private final CommonConfigClass configFile;  // Gives the file name and the number of chunks
+
+
+	/**
+	 * Creates the storage for a peer.
+	 *
+	 * @param peerDirectory The peer's directory.
+	 * @param configFile The configuration file containing file details.
+	 */
+	public ChunkFileStorage(File peerDirectory, CommonConfigClass configFile) {
+		this.peerDirectory = peerDirectory;
+		this.configFile = configFile;
+	}
+
+
+	// Returns the file that holds one piece.
+	public File chunkFile(int pieceIdx) {
+		return new File(peerDirectory, configFile.getFile() + "_" + pieceIdx);
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		File chunkFile = chunkFile(pieceIdx);
+
+		// Use a try-with-resources statement to automatically close the FileInputStream
+		try (FileInputStream fileInputStream = new FileInputStream(chunkFile)) {
+			// Allocate a byte array to hold the data of the chunk
+			byte[] chunkData = new byte[(int) chunkFile.length()];
+
+			// Read the entire chunk data into the byte array
+			fileInputStream.read(chunkData);
+			return chunkData;
+		}
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		// A chunk file may be hard-linked into the host's piece store; write a new file instead of into the shared one
+		Files.deleteIfExists(chunkFile(pieceIdx).toPath());
+
+		// Use a try-with-resources statement to automatically close the FileOutputStream
+		try (FileOutputStream os = new FileOutputStream(chunkFile(pieceIdx))) {
+			os.write(data);
+		}
+	}
+
+
+	/**
+	 * Combines the data chunks, in order, into the complete file.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 */
+	@Override
+	public void finish() throws IOException {
+		File combinedFile = new File(peerDirectory, configFile.getFile());
+
+		// Use a try-with-resources statement to automatically close the FileOutputStream
+		try (FileOutputStream os = new FileOutputStream(combinedFile)) {
+			for (int i = 0; i < configFile.getNumberOfChunks(); i++) {
+				os.write(readPiece(i));
+			}
+		}
+	}
+
+
+	@Override
+	public void close() {
+		// Every chunk file is closed after each access
+	}
+}
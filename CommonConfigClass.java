@@ -1,4 +1,11 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a configuration file in a peer-to-peer network.
@@ -12,13 +19,21 @@ public class CommonConfigClass {
 	private int optimisticUnchokingInterval = 0;
 	private int numberOfNeighbors = 0;
 	private int unchokingInterval = 0;
-	private int fileSize = 0;
+	private long fileSize = 0;
 	private int numberOfChunks = 0;
+	// Piece indices travel as 4-byte ints and the packed BITFIELD must fit in one message
+	private static final int MAX_PIECES = Integer.MAX_VALUE - 8;
+	// Optional "Key Value" settings that follow the six mandatory lines of Common.cfg
+	private Map<String, String> optionalSettings = new HashMap<>();
+	// Files shared as one piece space when ContentSet names a listing, or null for a single file
+	private ContentLayout contentLayout = null;
+	// Directory holding Common.cfg, the shared file and the peer directories of this swarm
+	private File directory = new File(System.getProperty("user.dir"));
 	
 
 
 	private CommonConfigClass(int numberOfNeighbors, int unchokingInterval, int optimisticUnchokingInterval,
-							  String file, int fileSize, int chunkSize) {
+							  String file, long fileSize, int chunkSize) {
 
 		this.numberOfNeighbors = numberOfNeighbors;
 		this.unchokingInterval = unchokingInterval;
@@ -29,8 +44,13 @@ public class CommonConfigClass {
 		this.numberOfChunks = calculateNumberOfChunks(fileSize, chunkSize);
 	}
 	// Calculates the number of chunks based on file size and chunk size.
-	private int calculateNumberOfChunks(int fileSize, int chunkSize) {
-		return (int) Math.ceil((double) fileSize / chunkSize);
+	private int calculateNumberOfChunks(long fileSize, int chunkSize) {
+		long chunks = (fileSize + chunkSize - 1) / chunkSize;
+		if (chunks > MAX_PIECES) {
+			throw new IllegalArgumentException("FileSize " + fileSize + " needs " + chunks + " pieces of " + chunkSize
+					+ " bytes, more than " + MAX_PIECES + "; use a larger PieceSize");
+		}
+		return (int) chunks;
 	}
 
 	/**
@@ -40,19 +60,333 @@ public class CommonConfigClass {
 	 * @return A ConfigFile object or null if the input is invalid.
 	 */
 	public static CommonConfigClass getConfigFileObject(List<String> configLines) {
-		if (configLines != null && configLines.size() == 6) {
+		return getConfigFileObject(configLines, new File(System.getProperty("user.dir")));
+	}
+
+	/**
+	 * Creates a ConfigFile object for a swarm whose files live in the given directory.
+	 *
+	 * @param configLines The list of configuration parameter strings.
+	 * @param directory The directory holding Common.cfg; relative paths are resolved against it.
+	 * @return A ConfigFile object or null if the input is invalid.
+	 */
+	public static CommonConfigClass getConfigFileObject(List<String> configLines, File directory) {
+		if (configLines != null && configLines.size() >= 6) {
 			int numberOfNeighbors = Integer.parseInt(configLines.get(0).split(" ")[1]);
 			int unchokingInterval = Integer.parseInt(configLines.get(1).split(" ")[1]);
 			int optimisticUnchokingInterval = Integer.parseInt(configLines.get(2).split(" ")[1]);
 			String fileName = configLines.get(3).split(" ")[1];
-			int fileSize = Integer.parseInt(configLines.get(4).split(" ")[1]);
+			long fileSize = Long.parseLong(configLines.get(4).split(" ")[1]);
 			int chunkSize = Integer.parseInt(configLines.get(5).split(" ")[1]);
 
-			return new CommonConfigClass(numberOfNeighbors, unchokingInterval, optimisticUnchokingInterval,
+			CommonConfigClass config = new CommonConfigClass(numberOfNeighbors, unchokingInterval, optimisticUnchokingInterval,
 					fileName, fileSize, chunkSize);
+			config.directory = directory;
+
+			// Any further non-empty lines are optional settings in the same "Key Value" form
+			for (int i = 6; i < configLines.size(); i++) {
+				String line = configLines.get(i).trim();
+				if (!line.isEmpty()) {
+					String[] parts = line.split("\\s+", 2);
+					config.optionalSettings.put(parts[0], parts.length > 1 ? parts[1] : "");
+				}
+			}
+			String listing = config.getOptionalSetting("ContentSet", "");
+			if (!listing.isEmpty()) {
+				config.contentLayout = readContentLayout(directory, listing);
+				if (config.contentLayout.getTotalSize() != fileSize) {
+					throw new IllegalArgumentException("FileSize " + fileSize + " does not match the content set in " + listing
+							+ "; use FileSize " + config.contentLayout.getTotalSize());
+				}
+			}
+			// Check the stripe shape here rather than when the first stripe is encoded on a worker thread
+			int parityPieces = config.getErasureParityPieces();
+			int dataPieces = config.getOptionalIntSetting("ErasureDataPieces", 16);
+			if (parityPieces < 0) {
+				throw new IllegalArgumentException("ErasureParityPieces " + parityPieces + " must not be negative; use 0 to disable erasure coding");
+			}
+			if (parityPieces > 0 && (dataPieces < 1 || dataPieces + parityPieces > ErasureCoder.MAX_TOTAL_SHARDS)) {
+				throw new IllegalArgumentException("ErasureDataPieces " + dataPieces + " and ErasureParityPieces " + parityPieces
+						+ " must both be positive and add up to at most " + ErasureCoder.MAX_TOTAL_SHARDS);
+			}
+			long pieces = (long) config.numberOfChunks + (long) config.getNumberOfStripes() * config.getErasureParityPieces();
+			if (pieces > MAX_PIECES) {
+				throw new IllegalArgumentException("Erasure coding needs " + pieces + " pieces, more than " + MAX_PIECES);
+			}
+			return config;
 		}
 		return null;
 	}
+
+	// Reads a content set listing, relative to the swarm directory unless the path is absolute.
+	private static ContentLayout readContentLayout(File directory, String listing) {
+		Path path = directory.toPath().resolve(listing);
+		try {
+			return ContentLayout.parse(Files.readAllLines(path));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot read content set listing " + path, e);
+		}
+	}
+
+	/**
+	 * Returns the value of an optional setting, or the given default if it is absent.
+	 *
+	 * @param key The setting name as written in Common.cfg.
+	 * @param defaultValue The value to use when the setting is not configured.
+	 * @return The configured value or the default.
+	 */
+	public String getOptionalSetting(String key, String defaultValue) {
+		return optionalSettings.getOrDefault(key, defaultValue);
+	}
+
+	/**
+	 * Returns the value of an optional integer setting, or the given default if it is absent.
+	 *
+	 * @param key The setting name as written in Common.cfg.
+	 * @param defaultValue The value to use when the setting is not configured.
+	 * @return The configured value or the default.
+	 */
+	public int getOptionalIntSetting(String key, int defaultValue) {
+		String value = optionalSettings.get(key);
+		return (value != null) ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+
+	/**
+	 * Returns the value of an optional long setting, or the given default if it is absent.
+	 *
+	 * @param key The setting name as written in Common.cfg.
+	 * @param defaultValue The value to use when the setting is not configured.
+	 * @return The configured value or the default.
+	 */
+	public long getOptionalLongSetting(String key, long defaultValue) {
+		String value = optionalSettings.get(key);
+		return (value != null) ? Long.parseLong(value.trim()) : defaultValue;
+	}
+
+	// Number of worker threads serving REQUESTs from all neighbors; by default at least one per core.
+	public int getUploadThreads() {
+		return Math.max(1, getOptionalIntSetting("UploadThreads", Math.max(4, Runtime.getRuntime().availableProcessors())));
+	}
+
+	// Number of locks the pieces are spread over for concurrent storage access.
+	public int getPieceLockStripes() {
+		return Math.max(1, getOptionalIntSetting("PieceLockStripes", 64));
+	}
+
+	// Seconds a REQUEST may go unanswered before the piece is requested elsewhere.
+	public int getRequestTimeoutSeconds() {
+		return getOptionalIntSetting("RequestTimeoutSeconds", 30);
+	}
+
+	// Seconds a neighbor that has us unchoked may deliver nothing before it is treated as snubbing us.
+	public int getSnubTimeoutSeconds() {
+		return getOptionalIntSetting("SnubTimeoutSeconds", 10);
+	}
+
+	// Round-trip time in milliseconds up to which a neighbor counts as local.
+	public double getLocalRttMillis() {
+		return Double.parseDouble(getOptionalSetting("LocalRttMillis", "10"));
+	}
+
+	// Fraction of the preferred-neighbor slots kept for remote neighbors while any of them are interested.
+	public double getRemoteUnchokeShare() {
+		return Math.max(0, Math.min(1, Double.parseDouble(getOptionalSetting("RemoteUnchokeShare", "0.25"))));
+	}
+
+	// Seconds between round-trip time measurements to each neighbor.
+	public int getRttProbeSeconds() {
+		return Math.max(1, getOptionalIntSetting("RttProbeSeconds", 5));
+	}
+
+	// How a downloading peer stores pieces: "single-file", "mmap", "chunk-files" or "memory".
+	public String getStorageBackend() {
+		return getOptionalSetting("StorageBackend", "single-file").trim();
+	}
+
+	// Directory of the piece store shared by the peers of this host, or null if pieces are not shared.
+	public File getPieceStoreDirectory() {
+		String path = getOptionalSetting("PieceStore", "").trim();
+		return path.isEmpty() ? null : directory.toPath().resolve(path).toFile();
+	}
+
+	// Whether the memory backend writes the complete file to disk ("file") or only keeps it in memory ("none").
+	public boolean isMemoryOutputWritten() {
+		return !getOptionalSetting("MemoryStorageOutput", "file").trim().equals("none");
+	}
+
+	// Bytes of piece data kept in the upload cache; 0 disables the cache.
+	public long getPieceCacheSize() {
+		return getOptionalLongSetting("PieceCacheSize", 32L * 1024 * 1024);
+	}
+
+	// Pieces after a cache miss that are loaded in the background; 0 disables read-ahead.
+	public int getPieceCacheReadAhead() {
+		return getOptionalIntSetting("PieceCacheReadAhead", 0);
+	}
+
+	// Pieces after a sequential read of a mapped file that are paged in in the background; 0 disables read-ahead.
+	public int getMappedReadAhead() {
+		return getOptionalIntSetting("MappedReadAhead", 4);
+	}
+
+	// Received pieces that may wait for the disk writer before reader threads block.
+	public int getWriteQueuePieces() {
+		return Math.max(1, getOptionalIntSetting("WriteQueuePieces", 64));
+	}
+
+	// Pieces written between syncs to the device; 0 syncs on time only.
+	public int getSyncEveryPieces() {
+		return getOptionalIntSetting("SyncEveryPieces", 0);
+	}
+
+	// Longest time in milliseconds written pieces stay unsynced; 0 syncs on count only.
+	public long getSyncIntervalMillis() {
+		return getOptionalLongSetting("SyncIntervalMillis", 5000);
+	}
+
+	// Whether a downloading peer journals its pieces so a restart resumes the download.
+	public boolean isResumeEnabled() {
+		// Pieces held only in memory do not survive a restart
+		return getOptionalIntSetting("ResumeJournal", 1) == 1 && !getStorageBackend().equals("memory");
+	}
+
+	// Bytes of piece data that may be in flight across all connections; 0 means unlimited.
+	public long getMemoryBudget() {
+		return getOptionalLongSetting("MemoryBudget", 64L * 1024 * 1024);
+	}
+
+	// Process-wide and per-neighbor bandwidth limits in bytes per second; 0 means unlimited.
+	public long getUploadLimit() {
+		return getOptionalLongSetting("UploadLimit", 0);
+	}
+
+	public long getDownloadLimit() {
+		return getOptionalLongSetting("DownloadLimit", 0);
+	}
+
+	public long getPeerUploadLimit() {
+		return getOptionalLongSetting("PeerUploadLimit", 0);
+	}
+
+	public long getPeerDownloadLimit() {
+		return getOptionalLongSetting("PeerDownloadLimit", 0);
+	}
+
+	// Number of data pieces per erasure-coded stripe; only meaningful when parity pieces are configured.
+	public int getErasureDataPieces() {
+		return Math.min(getOptionalIntSetting("ErasureDataPieces", 16), numberOfChunks);
+	}
+
+	// Number of parity pieces added to every stripe; 0 disables erasure-coded distribution.
+	public int getErasureParityPieces() {
+		return getOptionalIntSetting("ErasureParityPieces", 0);
+	}
+
+	public boolean isErasureCoded() {
+		return getErasureParityPieces() > 0;
+	}
+
+	// Number of stripes whose parity pieces a seed keeps after encoding them.
+	public int getParityCacheStripes() {
+		return Math.max(1, getOptionalIntSetting("ParityCacheStripes", 8));
+	}
+
+	// Number of erasure-coded stripes; the last one may hold fewer data pieces than the others.
+	public int getNumberOfStripes() {
+		if (!isErasureCoded()) {
+			return 0;
+		}
+		return (int) Math.ceil((double) numberOfChunks / getErasureDataPieces());
+	}
+
+	/**
+	 * Returns the number of pieces exchanged in the swarm: the data chunks plus,
+	 * in erasure-coded mode, the parity pieces of every stripe.
+	 *
+	 * @return The size of the bitfield.
+	 */
+	public int getNumberOfPieces() {
+		return numberOfChunks + getNumberOfStripes() * getErasureParityPieces();
+	}
+
+	// Returns the stripe a data or parity piece belongs to.
+	public int getStripeOfPiece(int pieceIdx) {
+		if (pieceIdx < numberOfChunks) {
+			return pieceIdx / getErasureDataPieces();
+		}
+		return (pieceIdx - numberOfChunks) / getErasureParityPieces();
+	}
+
+	// Returns the number of data pieces in the given stripe.
+	public int getDataPiecesInStripe(int stripe) {
+		int dataPieces = getErasureDataPieces();
+		return Math.min(dataPieces, numberOfChunks - stripe * dataPieces);
+	}
+
+	// Whether the number of unchoke slots follows the measured upload capacity instead of staying fixed.
+	public boolean isAdaptivePreferredNeighbors() {
+		return getOptionalIntSetting("AdaptivePreferredNeighbors", 0) == 1;
+	}
+
+	// Bounds for the adaptive number of unchoke slots; NumberOfPreferredNeighbors is the starting value.
+	public int getMinPreferredNeighbors() {
+		return getOptionalIntSetting("MinPreferredNeighbors", 1);
+	}
+
+	public int getMaxPreferredNeighbors() {
+		return getOptionalIntSetting("MaxPreferredNeighbors", numberOfNeighbors);
+	}
+
+	// Average upload rate per slot, in bytes per second, below which the adaptive slot count shrinks; 0 disables the check.
+	public int getMinUploadSlotRate() {
+		return getOptionalIntSetting("MinUploadSlotRate", 4096);
+	}
+
+	// Length of the sliding window that transfer rates are averaged over, at least one unchoking interval.
+	public int getRateWindowSeconds() {
+		return getOptionalIntSetting("RateWindowSeconds", Math.max(unchokingInterval * 2, 10));
+	}
+
+	// Whether peers reuse pieces of an older version of the file found in their directory.
+	public boolean isDeltaSyncEnabled() {
+		return contentLayout == null && getOptionalIntSetting("DeltaSync", 0) == 1;
+	}
+
+	// Layout of the shared files when FileName names a content set directory, or null for a single file.
+	public ContentLayout getContentLayout() {
+		return contentLayout;
+	}
+
+	// Directory holding Common.cfg, the shared file and the peer directories of this swarm.
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Identifies the swarm in the handshake, so one listener can serve several swarms. ContentId sets
+	 * it explicitly; otherwise it is derived from FileName, FileSize and PieceSize, which every peer
+	 * of a swarm shares. Never zero.
+	 *
+	 * @return The content identifier.
+	 */
+	public int getContentId() {
+		int contentId = getOptionalIntSetting("ContentId", 0);
+		if (contentId == 0) {
+			contentId = (file + " " + fileSize + " " + chunkSize).hashCode();
+		}
+		return (contentId == 0) ? 1 : contentId;
+	}
+
+	// Number of pieces past the read position that a streaming reader asks to be fetched first.
+	public int getReadAheadPieces() {
+		return getOptionalIntSetting("ReadAheadPieces", 4);
+	}
+
+	// File, relative to the peer's directory, a downloading peer copies the shared file to while it downloads, or null.
+	public String getStreamOutput() {
+		String path = getOptionalSetting("StreamOutput", "").trim();
+		return path.isEmpty() ? null : path;
+	}
 	
 	public int getNumberOfNeighbors() {
 		return numberOfNeighbors;
@@ -86,11 +420,11 @@ public class CommonConfigClass {
 		this.file = file;
 	}
 	
-	public int getFileSize() {
+	public long getFileSize() {
 		return fileSize;
 	}
 	
-	public void setFileSize(int fileSize) {
+	public void setFileSize(long fileSize) {
 		this.fileSize = fileSize;
 	}
 	
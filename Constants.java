@@ -14,12 +14,20 @@ public class Constants {
 	// Zero bit string used in the handshake process
 	public static final String HEADER_FOR_ZERO_BITS_HANDSHAKE = "0000000000";
 
+	// Bytes moved per token bucket acquisition, so throttled connections interleave instead of sending whole pieces
+	public static final int BANDWIDTH_SLICE_SIZE = 16 * 1024;
+
 	/**
 	 * Enum representing different types of messages in the P2P network.
 	 */
 	public static enum TypeOfMessage {
-		// Enum values representing various message types with their respective integer codes
-		CHOKE(0), UNCHOKE(1), INTERESTED(2), NOT_INTERESTED(3), HAVE(4), BITFIELD(5), REQUEST(6), PIECE(7), COMPLETE(8);
+		// Enum values representing various message types with their respective integer codes;
+		// PING and PONG carry an 8-byte token that is echoed back to measure the round-trip time;
+		// MANIFEST carries the root hash of the manifest of the version the sender shares;
+		// SWARM carries the content identifier of the swarm the following messages belong to on a shared
+		// connection, and LEAVE ends the sender's part in the current swarm without closing the connection
+		CHOKE(0), UNCHOKE(1), INTERESTED(2), NOT_INTERESTED(3), HAVE(4), BITFIELD(5), REQUEST(6), PIECE(7), COMPLETE(8),
+		PING(9), PONG(10), MANIFEST(11), SWARM(12), LEAVE(13);
 
 		// Integer value representing the message type
 		private final int msgType;
@@ -0,0 +1,180 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Positional reads and writes over the files of a content layout as if they were one file. A range
+ * that crosses a file boundary is split across the files it covers. Only a bounded number of files
+ * are kept open at once, the least recently used being closed first, so a set of thousands of files
+ * does not run out of file descriptors.
+ */
+public class ContentFiles implements Closeable {
+
+	// Files kept open at once
+	private static final int MAX_OPEN_FILES = 64;
+
+	private final ContentLayout layout;  // Where every file sits in the combined range
+	private final File[] files;  // The files on disk, in layout order
+	private final boolean writable;  // Whether the files are opened for writing
+	private final LinkedHashMap<Integer, FileChannel> openFiles = new LinkedHashMap<>(16, 0.75f, true);  // Open channels, least recently used first
+	private boolean closed = false;  // Whether close() has run
+
+
+	/**
+	 * Opens the files of a layout. Writable files are created, with their directories, and sized to
+	 * the layout; data already in them is kept. Read-only files must exist and be at least as large
+	 * as the layout says.
+	 *
+	 * @param layout The layout of the files.
+	 * @param root The directory the layout's paths are relative to.
+	 * @param writable Whether pieces will be written.
+	 * @throws IOException If a file cannot be created or is missing or too short.
+	 */
+	public ContentFiles(ContentLayout layout, File root, boolean writable) throws IOException {
+		this.layout = layout;
+		this.files = layout.filesUnder(root).toArray(new File[0]);
+		this.writable = writable;
+		for (int i = 0; i < files.length; i++) {
+			if (writable) {
+				File parent = files[i].getParentFile();
+				if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+					throw new IOException("Cannot create directory " + parent);
+				}
+				try (RandomAccessFile file = new RandomAccessFile(files[i], "rw")) {
+					if (file.length() != layout.getSize(i)) {
+						file.setLength(layout.getSize(i));
+					}
+				}
+			} else if (files[i].length() < layout.getSize(i)) {
+				throw new IOException(files[i] + " is missing or shorter than " + layout.getSize(i) + " bytes");
+			}
+		}
+	}
+
+
+	/**
+	 * Fills a buffer from the combined range.
+	 *
+	 * @param offset The offset in the combined range to read from.
+	 * @param dst The buffer to fill up to its limit.
+	 * @throws IOException If a file cannot be read or the range ends first.
+	 */
+	public void read(long offset, ByteBuffer dst) throws IOException {
+		transfer(offset, dst, false);
+	}
+
+
+	/**
+	 * Writes a buffer into the combined range.
+	 *
+	 * @param offset The offset in the combined range to write to.
+	 * @param src The buffer to write out completely.
+	 * @throws IOException If a file cannot be written or the range ends first.
+	 */
+	public void write(long offset, ByteBuffer src) throws IOException {
+		transfer(offset, src, true);
+	}
+
+
+	// Moves the buffer's remaining bytes to or from the files covering the range.
+	private void transfer(long offset, ByteBuffer buffer, boolean write) throws IOException {
+		int limit = buffer.limit();
+		try {
+			while (buffer.hasRemaining()) {
+				if (offset >= layout.getTotalSize()) {
+					throw new IOException("Offset " + offset + " lies beyond the end of the content set");
+				}
+				int fileIdx = layout.fileAt(offset);
+				long positionInFile = offset - layout.getOffset(fileIdx);
+				int length = (int) Math.min(buffer.remaining(), layout.getSize(fileIdx) - positionInFile);
+				buffer.limit(buffer.position() + length);
+				transferWithin(fileIdx, positionInFile, buffer, write);
+				buffer.limit(limit);
+				offset += length;
+			}
+		} finally {
+			buffer.limit(limit);
+		}
+	}
+
+
+	// Moves bytes within one file, reopening it if another thread closed it to make room for a different file.
+	private void transferWithin(int fileIdx, long position, ByteBuffer buffer, boolean write) throws IOException {
+		while (true) {
+			FileChannel channel = channelOf(fileIdx);
+			try {
+				while (buffer.hasRemaining()) {
+					int done = write ? channel.write(buffer, position) : channel.read(buffer, position);
+					if (done < 0) {
+						throw new IOException(files[fileIdx] + " ended early");
+					}
+					position += done;
+				}
+				return;
+			} catch (ClosedChannelException e) {
+				if (Thread.currentThread().isInterrupted() || isClosed()) {
+					throw e;
+				}
+			}
+		}
+	}
+
+
+	// Returns an open channel for a file, closing the least recently used one if too many are open.
+	private synchronized FileChannel channelOf(int fileIdx) throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		FileChannel channel = openFiles.get(fileIdx);
+		if (channel == null || !channel.isOpen()) {
+			channel = writable
+					? FileChannel.open(files[fileIdx].toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+					: FileChannel.open(files[fileIdx].toPath(), StandardOpenOption.READ);
+			openFiles.put(fileIdx, channel);
+			if (openFiles.size() > MAX_OPEN_FILES) {
+				Iterator<Map.Entry<Integer, FileChannel>> eldest = openFiles.entrySet().iterator();
+				eldest.next().getValue().close();
+				eldest.remove();
+			}
+		}
+		return channel;
+	}
+
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+
+	/**
+	 * Flushes the files that are open to the device. Files closed earlier to make room were written
+	 * through the same page cache and are flushed by the operating system.
+	 *
+	 * @throws IOException If a file cannot be flushed.
+	 */
+	public synchronized void force() throws IOException {
+		for (FileChannel channel : openFiles.values()) {
+			if (channel.isOpen()) {
+				channel.force(false);
+			}
+		}
+	}
+
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		for (FileChannel channel : openFiles.values()) {
+			channel.close();
+		}
+		openFiles.clear();
+	}
+}
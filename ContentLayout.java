@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The files of a content set laid out back to back in one byte range, so the whole set is shared as
+ * a single file split into pieces and a piece may span file boundaries. The set is described by a
+ * listing named in Common.cfg ("ContentSet listing.txt") with one "size relative/path" line per file,
+ * in layout order; blank lines and lines starting with '#' are ignored. The files live in a directory
+ * named after FileName: next to Common.cfg for a seed and in the peer's directory otherwise.
+ * Run "java ContentLayout directory" to print the listing of an existing directory.
+ */
+public class ContentLayout {
+
+	private final String[] paths;  // Relative path of every file, in layout order
+	private final long[] sizes;  // Size of every file
+	private final long[] offsets;  // Offset of every file in the combined byte range
+	private final long totalSize;  // Size of the combined byte range
+
+
+	private ContentLayout(List<String> paths, List<Long> sizes) {
+		this.paths = paths.toArray(new String[0]);
+		this.sizes = new long[sizes.size()];
+		this.offsets = new long[sizes.size()];
+		long offset = 0;
+		for (int i = 0; i < this.sizes.length; i++) {
+			this.sizes[i] = sizes.get(i);
+			this.offsets[i] = offset;
+			offset += this.sizes[i];
+		}
+		this.totalSize = offset;
+	}
+
+
+	/**
+	 * Parses a content set listing.
+	 *
+	 * @param lines The lines of the listing.
+	 * @return The layout.
+	 * @throws IllegalArgumentException If a line is malformed, a path is absolute or leaves the
+	 *                                  content directory, or a path is listed twice.
+	 */
+	public static ContentLayout parse(List<String> lines) {
+		List<String> paths = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		for (String line : lines) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] parts = line.split("\\s+", 2);
+			if (parts.length < 2) {
+				throw new IllegalArgumentException("Content set line without a path: " + line);
+			}
+			long size = Long.parseLong(parts[0]);
+			Path path = Path.of(parts[1]).normalize();
+			if (size < 0 || path.isAbsolute() || path.startsWith("..") || path.toString().isEmpty()) {
+				throw new IllegalArgumentException("Invalid content set entry: " + line);
+			}
+			if (paths.contains(path.toString())) {
+				throw new IllegalArgumentException("File listed twice in the content set: " + path);
+			}
+			paths.add(path.toString());
+			sizes.add(size);
+		}
+		if (paths.isEmpty()) {
+			throw new IllegalArgumentException("Content set lists no files");
+		}
+		return new ContentLayout(paths, sizes);
+	}
+
+
+	/**
+	 * Describes a single file as a content set of one.
+	 *
+	 * @param path The path of the file, relative to the directory it is opened in.
+	 * @param size The size of the file.
+	 * @return The layout.
+	 */
+	public static ContentLayout singleFile(String path, long size) {
+		return new ContentLayout(List.of(path), List.of(size));
+	}
+
+
+	/**
+	 * Lists the regular files under a directory, in a stable order, as a content set.
+	 *
+	 * @param directory The directory to scan.
+	 * @return The layout of the files found.
+	 * @throws IOException If the directory cannot be read.
+	 */
+	public static ContentLayout scan(File directory) throws IOException {
+		Path root = directory.toPath();
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(root)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		List<String> paths = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		for (Path file : files) {
+			paths.add(root.relativize(file).toString());
+			sizes.add(Files.size(file));
+		}
+		return new ContentLayout(paths, sizes);
+	}
+
+
+	// Prints the listing of the directory given as the only argument.
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: java ContentLayout <directory>");
+			System.exit(1);
+		}
+		scan(new File(args[0])).print(System.out);
+	}
+
+
+	// Writes the layout in listing format.
+	public void print(PrintStream out) {
+		out.println("# " + paths.length + " files, " + totalSize + " bytes");
+		for (int i = 0; i < paths.length; i++) {
+			out.println(sizes[i] + " " + paths[i]);
+		}
+	}
+
+
+	/**
+	 * Returns the files of the set under a content directory.
+	 *
+	 * @param root The content directory.
+	 * @return The files, in layout order.
+	 */
+	public List<File> filesUnder(File root) {
+		List<File> files = new ArrayList<>(paths.length);
+		for (String path : paths) {
+			files.add(new File(root, path));
+		}
+		return files;
+	}
+
+
+	/**
+	 * Finds the file holding a byte of the combined range. Empty files hold no bytes and are never returned.
+	 *
+	 * @param offset The offset in the combined range.
+	 * @return The index of the file.
+	 */
+	public int fileAt(long offset) {
+		int idx = Arrays.binarySearch(offsets, offset);
+		if (idx < 0) {
+			idx = -idx - 2;
+		}
+		// Several files start at the same offset when empty files precede a non-empty one
+		while (idx < sizes.length - 1 && sizes[idx] == 0) {
+			idx++;
+		}
+		return idx;
+	}
+
+
+	/**
+	 * Returns the first piece holding data of a file.
+	 *
+	 * @param fileIdx The index of the file.
+	 * @param chunkSize The piece size.
+	 * @return The index of the piece, or -1 for an empty file.
+	 */
+	public int firstPieceOf(int fileIdx, int chunkSize) {
+		return (sizes[fileIdx] == 0) ? -1 : (int) (offsets[fileIdx] / chunkSize);
+	}
+
+
+	/**
+	 * Returns the last piece holding data of a file.
+	 *
+	 * @param fileIdx The index of the file.
+	 * @param chunkSize The piece size.
+	 * @return The index of the piece, or -1 for an empty file.
+	 */
+	public int lastPieceOf(int fileIdx, int chunkSize) {
+		return (sizes[fileIdx] == 0) ? -1 : (int) ((offsets[fileIdx] + sizes[fileIdx] - 1) / chunkSize);
+	}
+
+
+	public int getNumberOfFiles() {
+		return paths.length;
+	}
+
+	public String getPath(int fileIdx) {
+		return paths[fileIdx];
+	}
+
+	public long getSize(int fileIdx) {
+		return sizes[fileIdx];
+	}
+
+	public long getOffset(int fileIdx) {
+		return offsets[fileIdx];
+	}
+
+	public long getTotalSize() {
+		return totalSize;
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Systematic Reed-Solomon coder over GF(2^8) used for erasure-coded piece distribution.
+ * A stripe of dataShards pieces is extended with parityShards pieces built from a Cauchy matrix,
+ * so any dataShards of the dataShards + parityShards pieces are enough to rebuild the stripe.
+ */
+public class ErasureCoder {
+
+	// Largest number of shards a stripe can hold with byte-sized field elements
+	public static final int MAX_TOTAL_SHARDS = 256;
+
+	private static final int[] EXP = new int[512];  // Antilog table, doubled so products need no modulo
+	private static final int[] LOG = new int[256];  // Log table for non-zero field elements
+	private static final byte[][] MUL = new byte[256][256];  // Full multiplication table for the inner loops
+
+	// Builds the field tables for the primitive polynomial x^8 + x^4 + x^3 + x^2 + 1
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if ((x & 0x100) != 0) {
+				x ^= 0x11D;
+			}
+		}
+		for (int i = 255; i < EXP.length; i++) {
+			EXP[i] = EXP[i - 255];
+		}
+		for (int a = 1; a < 256; a++) {
+			for (int b = 1; b < 256; b++) {
+				MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+			}
+		}
+	}
+
+	private final int dataShards;  // Number of data pieces in a stripe
+	private final int parityShards;  // Number of parity pieces in a stripe
+	private final int[][] parityMatrix;  // parityShards x dataShards Cauchy coefficients
+
+
+	/**
+	 * Creates a coder for stripes of the given shape.
+	 *
+	 * @param dataShards The number of data pieces in a stripe.
+	 * @param parityShards The number of parity pieces in a stripe.
+	 */
+	public ErasureCoder(int dataShards, int parityShards) {
+		if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > MAX_TOTAL_SHARDS) {
+			throw new IllegalArgumentException("Unsupported stripe shape: " + dataShards + "+" + parityShards);
+		}
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+		this.parityMatrix = new int[parityShards][dataShards];
+		for (int row = 0; row < parityShards; row++) {
+			for (int col = 0; col < dataShards; col++) {
+				// x = dataShards + row and y = col are always distinct, so x ^ y is never zero
+				parityMatrix[row][col] = inverse((dataShards + row) ^ col);
+			}
+		}
+	}
+
+
+	/**
+	 * Computes the parity pieces of a stripe.
+	 *
+	 * @param data The data pieces; shorter pieces are treated as zero-padded to shardSize.
+	 * @param shardSize The size of every parity piece.
+	 * @return The parity pieces, each shardSize bytes long.
+	 */
+	public byte[][] encode(byte[][] data, int shardSize) {
+		byte[][] parity = new byte[parityShards][shardSize];
+		for (int row = 0; row < parityShards; row++) {
+			for (int col = 0; col < dataShards; col++) {
+				mulAdd(parityMatrix[row][col], data[col], parity[row]);
+			}
+		}
+		return parity;
+	}
+
+
+	/**
+	 * Rebuilds the missing data pieces of a stripe from any dataShards of its present pieces.
+	 * Shards are indexed data first, then parity; missing entries of shards are filled in place.
+	 *
+	 * @param shards The stripe pieces, with null for every missing piece.
+	 * @param shardSize The padded size of a piece.
+	 * @throws IllegalArgumentException If fewer than dataShards pieces are present.
+	 */
+	public void decodeData(byte[][] shards, int shardSize) {
+		int[] rows = new int[dataShards];
+		int found = 0;
+		for (int i = 0; i < shards.length && found < dataShards; i++) {
+			if (shards[i] != null) {
+				rows[found++] = i;
+			}
+		}
+		if (found < dataShards) {
+			throw new IllegalArgumentException("Need " + dataShards + " pieces to decode, have " + found);
+		}
+
+		// Rows of the generator matrix for the shards we have: identity rows for data, Cauchy rows for parity
+		int[][] matrix = new int[dataShards][];
+		for (int r = 0; r < dataShards; r++) {
+			if (rows[r] < dataShards) {
+				matrix[r] = new int[dataShards];
+				matrix[r][rows[r]] = 1;
+			} else {
+				matrix[r] = parityMatrix[rows[r] - dataShards].clone();
+			}
+		}
+		int[][] inverted = invert(matrix);
+
+		for (int col = 0; col < dataShards; col++) {
+			if (shards[col] == null) {
+				byte[] rebuilt = new byte[shardSize];
+				for (int r = 0; r < dataShards; r++) {
+					mulAdd(inverted[col][r], shards[rows[r]], rebuilt);
+				}
+				shards[col] = rebuilt;
+			}
+		}
+	}
+
+
+	// Adds coefficient * input to output, treating input as zero-padded to the output length.
+	private static void mulAdd(int coefficient, byte[] input, byte[] output) {
+		if (coefficient == 0) {
+			return;
+		}
+		byte[] table = MUL[coefficient];
+		int length = Math.min(input.length, output.length);
+		for (int i = 0; i < length; i++) {
+			output[i] ^= table[input[i] & 0xFF];
+		}
+	}
+
+
+	// Multiplicative inverse of a non-zero field element.
+	private static int inverse(int a) {
+		return EXP[255 - LOG[a]];
+	}
+
+
+	// Inverts a square matrix over GF(2^8) with Gauss-Jordan elimination.
+	private static int[][] invert(int[][] matrix) {
+		int n = matrix.length;
+		int[][] result = new int[n][n];
+		for (int i = 0; i < n; i++) {
+			result[i][i] = 1;
+		}
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			while (matrix[pivot][col] == 0) {
+				pivot++;
+				if (pivot == n) {
+					throw new IllegalArgumentException("Singular decoding matrix");
+				}
+			}
+			int[] swap = matrix[col];
+			matrix[col] = matrix[pivot];
+			matrix[pivot] = swap;
+			swap = result[col];
+			result[col] = result[pivot];
+			result[pivot] = swap;
+
+			int scale = inverse(matrix[col][col]);
+			for (int j = 0; j < n; j++) {
+				matrix[col][j] = MUL[scale][matrix[col][j]] & 0xFF;
+				result[col][j] = MUL[scale][result[col][j]] & 0xFF;
+			}
+			for (int row = 0; row < n; row++) {
+				int factor = matrix[row][col];
+				if (row != col && factor != 0) {
+					for (int j = 0; j < n; j++) {
+						matrix[row][j] ^= MUL[factor][matrix[col][j]] & 0xFF;
+						result[row][j] ^= MUL[factor][result[col][j]] & 0xFF;
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
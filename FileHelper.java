@@ -32,6 +32,17 @@ public class FileHelper {
 	 * @return A list of strings, where each string represents a line in the file.
 	 */
 	public List<String> parseTheContent(String filePath) {
+		return parseTheContent(new File(System.getProperty("user.dir")), filePath);
+	}
+
+	/**
+	 * Parses the content of a file in the given directory and returns it as a list of strings.
+	 *
+	 * @param baseDirectory The directory the path is relative to.
+	 * @param filePath The relative path of the file to be parsed.
+	 * @return A list of strings, where each string represents a line in the file.
+	 */
+	public List<String> parseTheContent(File baseDirectory, String filePath) {
 		List<String> content = new ArrayList<>();
 
 		// Return an empty list if the filePath is null
@@ -40,7 +51,7 @@ public class FileHelper {
 		}
 
 		// Construct the full directory path
-		String directory = System.getProperty("user.dir") + File.separator + filePath;
+		String directory = baseDirectory.getPath() + File.separator + filePath;
 
 		// Using try-with-resources for automatic resource management
 		try (BufferedReader br = new BufferedReader(new FileReader(directory))) {
@@ -119,6 +119,35 @@ public class LoggingClass {
 	}
 
 
+	/**
+	 * Logs a change in the preferred neighbors together with the current number of unchoke slots,
+	 * used when the slot count adapts to the measured upload capacity.
+	 *
+	 * @param peerId       The ID of the peer whose preferred neighbors have changed.
+	 * @param peerIdsList  An array of peer IDs that are now considered as preferred neighbors.
+	 * @param slots        The number of unchoke slots currently in use.
+	 */
+	public synchronized void logForChangeOfPreferredNeighbors(int peerId, int[] peerIdsList, int slots){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] has the preferred neighbors [");
+
+		// Join the peer IDs with commas
+		StringBuilder s = new StringBuilder();
+		for (int i : peerIdsList) {
+			s.append(Integer.toString(i)).append(",");
+		}
+		logRecord.append(s.deleteCharAt(s.length() - 1));
+		logRecord.append("] using " + slots + " unchoke slots.");
+
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
 	/**
 	 * Logs the event of selecting an optimistically unchoked neighbor for a peer.
 	 * This method constructs a log message that includes the current timestamp,
@@ -396,6 +425,24 @@ public class LoggingClass {
 
 
 
+	/**
+	 * Logs that a neighbor has us unchoked but has delivered nothing for the snub timeout.
+	 *
+	 * @param peerId1 The ID of the peer that detected the snub.
+	 * @param peerId2 The ID of the neighbor that is snubbing it.
+	 */
+	public synchronized void logForSnubbedNeighbor(int peerId1, int peerId2){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId1 + "] is snubbed by [" + peerId2 + "].");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
 	/**
 	 * Logs the event of a peer completing the download of the entire file.
 	 * This method constructs a log message that includes the current timestamp
@@ -424,6 +471,191 @@ public class LoggingClass {
 	}
 
 
+	/**
+	 * Logs the pieces a restarted peer kept from its interrupted download.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param resumedPieces The number of journaled pieces that passed verification.
+	 * @param totalPieces The number of pieces in the swarm.
+	 * @param verifyMillis The time spent verifying the journaled pieces.
+	 */
+	public synchronized void logForResumedPieces(int peerId, int resumedPieces, int totalPieces, long verifyMillis){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] resumed its download with " + resumedPieces + " of " + totalPieces + " pieces verified in " + verifyMillis + " ms.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs a file of a content set whose pieces have all been stored.
+	 *
+	 * @param peerId The ID of the downloading peer.
+	 * @param path The path of the file within the content set.
+	 */
+	public synchronized void logForFileCompletion(int peerId, String path){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] has completed the file " + path + ".");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs the pieces a peer took from the host's piece store instead of downloading them.
+	 *
+	 * @param peerId The ID of the peer that read the store.
+	 * @param storedPieces The number of pieces taken from the store.
+	 */
+	public synchronized void logForPieceStorePieces(int peerId, int storedPieces){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] took " + storedPieces + " pieces from the host's piece store.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs the pieces a peer reused from an older version of the file instead of downloading them.
+	 *
+	 * @param peerId The ID of the peer that scanned its old copy.
+	 * @param reusedPieces The number of pieces found in the old copy.
+	 * @param totalPieces The number of data pieces in the new version.
+	 */
+	public synchronized void logForReusedPieces(int peerId, int reusedPieces, int totalPieces){
+
+		// StringBuilder for efficient string concatenation
+		StringBuilder logRecord = new StringBuilder();
+
+		// Generating a timestamp in a specified format
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		// Appending the timestamp and a message with the number of pieces reused from the previous version
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] reused " + reusedPieces + " of " + totalPieces + " pieces from its previous version of the file.");
+
+		try {
+			// Call the logHelper method to handle the actual logging
+			logHelper(logRecord);
+		}
+		catch (Exception e) {
+			// Print the stack trace of any exceptions for debugging purposes
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs how long transfers were held back by the configured bandwidth limits.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param uploadThrottledMillis Time spent waiting on upload limits, in milliseconds.
+	 * @param downloadThrottledMillis Time spent waiting on download limits, in milliseconds.
+	 */
+	public synchronized void logForBandwidthThrottling(int peerId, long uploadThrottledMillis, long downloadThrottledMillis){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] was throttled for " + uploadThrottledMillis + " ms uploading and " + downloadThrottledMillis + " ms downloading.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs how well the upload piece cache worked.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param hits Piece reads answered from the cache.
+	 * @param misses Piece reads that went to disk.
+	 * @param evictions Pieces dropped from the cache to stay within its size.
+	 * @param bytesFromCache Bytes answered from the cache.
+	 */
+	public synchronized void logForPieceCache(int peerId, long hits, long misses, long evictions, long bytesFromCache){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		long reads = hits + misses;
+		long hitRate = (reads == 0) ? 0 : hits * 100 / reads;
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] served " + hits + " of " + reads + " piece reads (" + hitRate + "%) and " + bytesFromCache + " bytes from its piece cache, with " + evictions + " evictions.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs how the disk writer flushed received pieces.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param syncs The number of times written pieces were synced to the device.
+	 * @param coalescedWrites Pieces written together with the piece before them.
+	 */
+	public synchronized void logForDiskWriter(int peerId, long syncs, long coalescedWrites){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] synced received pieces " + syncs + " times and wrote " + coalescedWrites + " pieces together with an adjacent piece.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs how the downloaded data was split between local and remote neighbors.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param localBytes Bytes downloaded from neighbors within the local round-trip time.
+	 * @param remoteBytes Bytes downloaded from all other neighbors.
+	 */
+	public synchronized void logForLocalityTraffic(int peerId, long localBytes, long remoteBytes){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] downloaded " + localBytes + " bytes from local neighbors and " + remoteBytes + " bytes from remote neighbors.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Logs how much piece data was held in memory and how often the memory budget applied backpressure.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param peakBytes The most piece data in flight at once.
+	 * @param budget The configured budget, 0 if unlimited.
+	 * @param waitedMillis Time uploads spent waiting for room.
+	 * @param deferredRequests Number of REQUESTs put off for lack of room.
+	 */
+	public synchronized void logForMemoryUsage(int peerId, long peakBytes, long budget, long waitedMillis, long deferredRequests){
+		StringBuilder logRecord = new StringBuilder();
+		String timeStamp = new SimpleDateFormat("y-M-d 'at' h:m:s a z").format(Calendar.getInstance().getTime());
+		logRecord.append("["+timeStamp + "]: Peer [" + peerId + "] held at most " + peakBytes + " bytes of piece data (budget " + budget + "), waited " + waitedMillis + " ms for memory and deferred " + deferredRequests + " requests.");
+		try {
+			logHelper(logRecord);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+
 	/**
 	 * Logs the event marking the completion of the download process by all peers in the network.
 	 * This method constructs a log message that includes the current timestamp and a notification
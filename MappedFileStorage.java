@@ -0,0 +1,241 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the preallocated file mapped into memory and serves pieces as slices of the mapping, so a
+ * piece that is read often is served from the page cache without a read call or a heap copy.
+ * Files larger than one mapping can cover are mapped in windows of whole pieces, so no piece ever
+ * spans two windows. Parity pieces of an erasure-coded download go to a "FileName.parity" sidecar
+ * that is mapped the same way and removed when the storage is closed. A piece is paged in with
+ * MappedByteBuffer.load(), the willneed hint Java exposes, before it is handed out, so the upload
+ * does not fault pages in while it holds the connection and its bandwidth tokens; when pieces are
+ * read in order, the stored pieces that follow are paged in on a background thread.
+ */
+public class MappedFileStorage implements PieceStorage {
+
+	// Largest window mapped at once; a single mapping cannot exceed 2 GB
+	private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+	private final CommonConfigClass configFile;  // Gives file size, chunk size and the number of chunks
+	private final long windowSize;  // Bytes covered by each window, a whole number of pieces
+	private final boolean readOnly;  // Whether the file is a seed's original, mapped read-only
+	private final RandomAccessFile dataFile;  // The final file
+	private final MappedByteBuffer[] dataWindows;  // Mappings of the final file, in order
+	private final File parityPath;  // Sidecar file for parity pieces, or null without erasure coding
+	private final RandomAccessFile parityFile;  // Open sidecar file, or null
+	private final MappedByteBuffer[] parityWindows;  // Mappings of the sidecar file, or null
+	private final int readAhead;  // Pieces after a sequential read to page in, 0 to disable
+	private final PieceBitfield storedPieces;  // Pieces whose data is in the file; only those are paged in ahead
+	private final ExecutorService readAheadPool;  // Background thread paging in pieces ahead, or null
+	private final AtomicInteger lastRead = new AtomicInteger(-2);  // Data piece read last, to detect sequential reads
+	private final AtomicInteger pagedInUpTo = new AtomicInteger(-1);  // Last data piece paged in ahead
+
+
+	/**
+	 * Opens the storage without read-ahead.
+	 *
+	 * @param peerDirectory The peer's directory.
+	 * @param configFile The configuration file containing file details.
+	 * @throws IOException If the file cannot be opened or mapped.
+	 */
+	public MappedFileStorage(File peerDirectory, CommonConfigClass configFile) throws IOException {
+		this(peerDirectory, configFile, 0, null);
+	}
+
+
+	/**
+	 * Opens the storage, preallocating the file if it does not have the expected size, and maps it.
+	 *
+	 * @param peerDirectory The peer's directory.
+	 * @param configFile The configuration file containing file details.
+	 * @param readAhead The number of pieces to page in after a sequential read, or 0.
+	 * @param storedPieces The pieces stored so far, kept up to date by the caller, or null if all are.
+	 * @throws IOException If the file cannot be opened or mapped.
+	 */
+	public MappedFileStorage(File peerDirectory, CommonConfigClass configFile, int readAhead, PieceBitfield storedPieces) throws IOException {
+		this(peerDirectory, configFile, readAhead, storedPieces, false);
+	}
+
+
+	/**
+	 * Maps a complete file read-only, for a seed that serves its original file. The file is never
+	 * resized or written, and parity pieces are not stored.
+	 *
+	 * @param directory The directory holding FileName.
+	 * @param configFile The configuration file containing file details.
+	 * @param readAhead The number of pieces to page in after a sequential read, or 0.
+	 * @return The storage.
+	 * @throws IOException If the file cannot be opened or mapped, or is shorter than configured.
+	 */
+	public static MappedFileStorage openReadOnly(File directory, CommonConfigClass configFile, int readAhead) throws IOException {
+		return new MappedFileStorage(directory, configFile, readAhead, null, true);
+	}
+
+
+	private MappedFileStorage(File peerDirectory, CommonConfigClass configFile, int readAhead, PieceBitfield storedPieces, boolean readOnly) throws IOException {
+		this.configFile = configFile;
+		this.readOnly = readOnly;
+		this.readAhead = Math.max(0, readAhead);
+		this.storedPieces = storedPieces;
+		this.readAheadPool = (this.readAhead > 0) ? Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "Mapped read-ahead thread");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		long chunkSize = configFile.getChunkSize();
+		windowSize = Math.max(1, MAX_WINDOW_SIZE / chunkSize) * chunkSize;
+
+		File path = new File(peerDirectory, configFile.getFile());
+		dataFile = new RandomAccessFile(path, readOnly ? "r" : "rw");
+		if (readOnly && dataFile.length() < configFile.getFileSize()) {
+			dataFile.close();
+			throw new IOException(path + " is shorter than FileSize " + configFile.getFileSize());
+		}
+		if (!readOnly && dataFile.length() != configFile.getFileSize()) {
+			dataFile.setLength(configFile.getFileSize());
+		}
+		dataWindows = map(dataFile.getChannel(), configFile.getFileSize());
+
+		if (configFile.isErasureCoded() && !readOnly) {
+			long paritySize = (long) configFile.getNumberOfStripes() * configFile.getErasureParityPieces() * chunkSize;
+			parityPath = new File(peerDirectory, configFile.getFile() + ".parity");
+			parityFile = new RandomAccessFile(parityPath, "rw");
+			parityFile.setLength(paritySize);
+			parityWindows = map(parityFile.getChannel(), paritySize);
+		} else {
+			parityPath = null;
+			parityFile = null;
+			parityWindows = null;
+		}
+	}
+
+
+	// Maps a file in consecutive windows.
+	private MappedByteBuffer[] map(FileChannel channel, long size) throws IOException {
+		FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+		int count = (int) ((size + windowSize - 1) / windowSize);
+		MappedByteBuffer[] windows = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = i * windowSize;
+			windows[i] = channel.map(mode, start, Math.min(windowSize, size - start));
+		}
+		return windows;
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		ByteBuffer slice = readPieceBuffer(pieceIdx);
+		byte[] data = new byte[slice.remaining()];
+		slice.get(data);
+		return data;
+	}
+
+
+	/**
+	 * Returns the piece as a read-only slice of the mapping, without copying it. The pages of the
+	 * piece are loaded first, and a read that follows the previous one pages in the next pieces.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return A buffer positioned at the start of the piece.
+	 */
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) {
+		MappedByteBuffer piece = slice(pieceIdx);
+		piece.load();
+		if (lastRead.getAndSet(pieceIdx) == pieceIdx - 1) {
+			scheduleReadAhead(pieceIdx);
+		}
+		return piece.asReadOnlyBuffer();
+	}
+
+
+	// Pages in the stored data pieces after a sequentially read one in the background, each piece once.
+	private void scheduleReadAhead(int pieceIdx) {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		if (readAheadPool == null || pieceIdx >= numberOfChunks) {
+			return;
+		}
+		int last = Math.min(pieceIdx + readAhead, numberOfChunks - 1);
+		int first = Math.max(pieceIdx + 1, pagedInUpTo.getAndAccumulate(last, Math::max) + 1);
+		if (first > last) {
+			return;
+		}
+		try {
+			readAheadPool.execute(() -> {
+				for (int next = first; next <= last; next++) {
+					if (storedPieces == null || storedPieces.get(next)) {
+						slice(next).load();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The storage is closing
+		}
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) {
+		slice(pieceIdx).put(data);
+	}
+
+
+	/**
+	 * Writes the mapped pages back to the file.
+	 */
+	@Override
+	public void finish() {
+		sync();
+	}
+
+
+	@Override
+	public void sync() {
+		if (readOnly) {
+			return;
+		}
+		for (MappedByteBuffer window : dataWindows) {
+			window.force();
+		}
+		if (parityWindows != null) {
+			for (MappedByteBuffer window : parityWindows) {
+				window.force();
+			}
+		}
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		if (readAheadPool != null) {
+			readAheadPool.shutdownNow();
+		}
+		finish();
+		dataFile.close();
+		if (parityFile != null) {
+			parityFile.close();
+			parityPath.delete();
+		}
+	}
+
+
+	// Returns a writable view of the bytes of one piece.
+	private MappedByteBuffer slice(int pieceIdx) {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		boolean isParity = pieceIdx >= numberOfChunks;
+		long offset = (long) (isParity ? pieceIdx - numberOfChunks : pieceIdx) * configFile.getChunkSize();
+		int length = isParity ? configFile.getChunkSize() : (int) Math.min(configFile.getChunkSize(), configFile.getFileSize() - offset);
+
+		MappedByteBuffer window = (isParity ? parityWindows : dataWindows)[(int) (offset / windowSize)];
+		return window.slice((int) (offset % windowSize), length);
+	}
+}
@@ -0,0 +1,116 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts for the piece buffers that are in flight across all connections against a byte budget.
+ * Uploads wait for room before fetching a piece, while downloads only reserve room when a REQUEST is
+ * about to be sent and put the request off when there is none, so a reader thread never blocks on memory
+ * held by an upload that may itself be waiting for the remote side to read.
+ */
+public class MemoryGovernor {
+
+	private final long budget;  // Bytes of piece data allowed in flight at once; 0 disables the limit
+	private long usedBytes = 0;  // Bytes currently reserved
+	private long peakBytes = 0;  // Highest reservation seen
+	private long waitedNanos = 0;  // Total time callers spent waiting for room
+	private long deferredRequests = 0;  // Reservations refused by tryAcquire
+
+
+	/**
+	 * Creates a governor.
+	 *
+	 * @param budget The number of bytes allowed in flight, or 0 for no limit.
+	 */
+	public MemoryGovernor(long budget) {
+		this.budget = Math.max(0, budget);
+	}
+
+
+	/**
+	 * Reserves room for a buffer, waiting until it fits. A buffer is always admitted when nothing else is
+	 * reserved, so a budget smaller than one piece slows transfers down instead of stopping them.
+	 *
+	 * @param bytes The size of the buffer.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		if (!fits(bytes)) {
+			long start = System.nanoTime();
+			while (!fits(bytes)) {
+				wait();
+			}
+			waitedNanos += System.nanoTime() - start;
+		}
+		reserve(bytes);
+	}
+
+
+	/**
+	 * Reserves room for a buffer only if it fits right now.
+	 *
+	 * @param bytes The size of the buffer.
+	 * @return True if the room was reserved.
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		if (!fits(bytes)) {
+			deferredRequests++;
+			return false;
+		}
+		reserve(bytes);
+		return true;
+	}
+
+
+	/**
+	 * Accounts for a buffer that already exists, such as an unrequested piece, without waiting.
+	 *
+	 * @param bytes The size of the buffer.
+	 */
+	public synchronized void acquireNow(long bytes) {
+		reserve(bytes);
+	}
+
+
+	/**
+	 * Returns room reserved earlier and wakes up waiting callers.
+	 *
+	 * @param bytes The size of the released buffer.
+	 */
+	public synchronized void release(long bytes) {
+		usedBytes = Math.max(0, usedBytes - bytes);
+		notifyAll();
+	}
+
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized long getPeakBytes() {
+		return peakBytes;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getWaitedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitedNanos);
+	}
+
+	public synchronized long getDeferredRequests() {
+		return deferredRequests;
+	}
+
+
+	// Checks whether a buffer of the given size may be reserved now. Must be called with the monitor held.
+	private boolean fits(long bytes) {
+		return budget == 0 || usedBytes == 0 || usedBytes + bytes <= budget;
+	}
+
+
+	// Adds a reservation and tracks the peak. Must be called with the monitor held.
+	private void reserve(long bytes) {
+		usedBytes += bytes;
+		peakBytes = Math.max(peakBytes, usedBytes);
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps every piece in off-heap memory and serves uploads as slices of it, so a small payload
+ * moves between peers without touching the disk. The whole file lives in one direct buffer that
+ * is handed to the caller once complete; with MemoryStorageOutput "file" it is also written to the
+ * peer's directory in a single pass at the end. Parity pieces of an erasure-coded download sit in
+ * a second direct buffer. Nothing survives a restart, so this backend keeps no resume journal.
+ */
+public class MemoryStorage implements PieceStorage {
+
+	private final CommonConfigClass configFile;  // Gives file size, chunk size and the number of chunks
+	private final File peerDirectory;  // Where the complete file is written, if it is written at all
+	private final ByteBuffer data;  // The whole file
+	private final ByteBuffer parity;  // Parity pieces, or null without erasure coding
+
+
+	/**
+	 * Allocates room for the whole file and its parity pieces.
+	 *
+	 * @param peerDirectory The peer's directory.
+	 * @param configFile The configuration file containing file details.
+	 * @throws IllegalArgumentException If the file or its parity does not fit in one buffer.
+	 */
+	public MemoryStorage(File peerDirectory, CommonConfigClass configFile) {
+		this.configFile = configFile;
+		this.peerDirectory = peerDirectory;
+		long paritySize = (long) configFile.getNumberOfStripes() * configFile.getErasureParityPieces() * configFile.getChunkSize();
+		if (configFile.getFileSize() > Integer.MAX_VALUE || paritySize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("StorageBackend memory holds at most " + Integer.MAX_VALUE
+					+ " bytes; use single-file for FileSize " + configFile.getFileSize());
+		}
+		data = ByteBuffer.allocateDirect((int) configFile.getFileSize());
+		parity = configFile.isErasureCoded() ? ByteBuffer.allocateDirect((int) paritySize) : null;
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) {
+		ByteBuffer slice = readPieceBuffer(pieceIdx);
+		byte[] bytes = new byte[slice.remaining()];
+		slice.get(bytes);
+		return bytes;
+	}
+
+
+	/**
+	 * Returns the piece as a read-only slice of memory, without copying it.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return A buffer positioned at the start of the piece.
+	 */
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) {
+		return slice(pieceIdx).asReadOnlyBuffer();
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] bytes) {
+		slice(pieceIdx).put(bytes);
+	}
+
+
+	/**
+	 * Writes the complete file to the peer's directory in one pass when MemoryStorageOutput is
+	 * "file"; otherwise the file stays in memory only.
+	 *
+	 * @throws IOException If the file cannot be written.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (!configFile.isMemoryOutputWritten()) {
+			return;
+		}
+		ContentLayout layout = configFile.getContentLayout();
+		File root = peerDirectory;
+		if (layout == null) {
+			layout = ContentLayout.singleFile(configFile.getFile(), configFile.getFileSize());
+		} else {
+			root = new File(peerDirectory, configFile.getFile());
+		}
+		try (ContentFiles files = new ContentFiles(layout, root, true)) {
+			files.write(0, getContent());
+			files.force();
+		}
+	}
+
+
+	/**
+	 * Loads the complete file, for a seed that serves its original file from memory.
+	 *
+	 * @param source The original file or content set.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public void readFrom(ContentFiles source) throws IOException {
+		source.read(0, data.duplicate());
+	}
+
+
+	/**
+	 * Returns the whole file as it is in memory, without copying it.
+	 *
+	 * @return A read-only buffer over the file.
+	 */
+	public ByteBuffer getContent() {
+		return data.asReadOnlyBuffer();
+	}
+
+
+	@Override
+	public void close() {
+		// The buffers are freed with the storage
+	}
+
+
+	// Returns a writable view of the bytes of one piece.
+	private ByteBuffer slice(int pieceIdx) {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		boolean isParity = pieceIdx >= numberOfChunks;
+		int offset = (isParity ? pieceIdx - numberOfChunks : pieceIdx) * configFile.getChunkSize();
+		int length = isParity ? configFile.getChunkSize() : (int) Math.min(configFile.getChunkSize(), configFile.getFileSize() - offset);
+		return (isParity ? parity : data).slice(offset, length);
+	}
+}
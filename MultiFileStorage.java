@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes pieces in place into the files of a content set, in a directory named after FileName in
+ * the peer's directory. Every file is created at its full size up front, and a piece that spans a
+ * file boundary is split across the files it covers, so the set is complete as soon as its last
+ * piece is written. Parity pieces of an erasure-coded download go to a "FileName.parity" sidecar
+ * that is removed when the storage is closed.
+ */
+public class MultiFileStorage implements PieceStorage {
+
+	private final CommonConfigClass configFile;  // Gives chunk size and the number of chunks
+	private final ContentFiles dataFiles;  // The files of the content set
+	private final File parityPath;  // Sidecar file for parity pieces, or null without erasure coding
+	private final ContentFiles parityFile;  // Open sidecar file, or null
+
+
+	/**
+	 * Opens the storage, creating the content directory and every file of the set.
+	 *
+	 * @param peerDirectory The peer's directory.
+	 * @param layout The layout of the content set.
+	 * @param configFile The configuration file containing file details.
+	 * @throws IOException If a file cannot be created.
+	 */
+	public MultiFileStorage(File peerDirectory, ContentLayout layout, CommonConfigClass configFile) throws IOException {
+		this.configFile = configFile;
+		dataFiles = new ContentFiles(layout, new File(peerDirectory, configFile.getFile()), true);
+		if (configFile.isErasureCoded()) {
+			parityPath = new File(peerDirectory, configFile.getFile() + ".parity");
+			long paritySize = (long) configFile.getNumberOfStripes() * configFile.getErasureParityPieces() * configFile.getChunkSize();
+			parityFile = new ContentFiles(ContentLayout.singleFile(parityPath.getName(), paritySize), peerDirectory, true);
+		} else {
+			parityPath = null;
+			parityFile = null;
+		}
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		byte[] data = new byte[pieceLength(pieceIdx)];
+		filesOf(pieceIdx).read(offsetOf(pieceIdx), ByteBuffer.wrap(data));
+		return data;
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		filesOf(pieceIdx).write(offsetOf(pieceIdx), ByteBuffer.wrap(data));
+	}
+
+
+	@Override
+	public void sync() throws IOException {
+		dataFiles.force();
+		if (parityFile != null) {
+			parityFile.force();
+		}
+	}
+
+
+	/**
+	 * Flushes the files to the device; the pieces are already in place.
+	 */
+	@Override
+	public void finish() throws IOException {
+		dataFiles.force();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		dataFiles.close();
+		if (parityFile != null) {
+			parityFile.close();
+			parityPath.delete();
+		}
+	}
+
+
+	// Returns the files a piece is stored in: the content set for data pieces, the sidecar for parity pieces.
+	private ContentFiles filesOf(int pieceIdx) {
+		return (pieceIdx < configFile.getNumberOfChunks()) ? dataFiles : parityFile;
+	}
+
+
+	// Returns the offset of the piece within its files.
+	private long offsetOf(int pieceIdx) {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		int indexInFile = (pieceIdx < numberOfChunks) ? pieceIdx : pieceIdx - numberOfChunks;
+		return (long) indexInFile * configFile.getChunkSize();
+	}
+
+
+	// Returns the length of the piece; only the last data piece can be shorter than the chunk size.
+	private int pieceLength(int pieceIdx) {
+		if (pieceIdx >= configFile.getNumberOfChunks()) {
+			return configFile.getChunkSize();
+		}
+		return (int) Math.min(configFile.getChunkSize(), configFile.getFileSize() - offsetOf(pieceIdx));
+	}
+}
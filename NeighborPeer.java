@@ -5,8 +5,8 @@
  */
 public class NeighborPeer {
 
-	// Array representing the bitfield of the file parts possessed by this peer
-	private int[] bitFieldArray = null;
+	// Bitfield of the file parts possessed by this peer, null until its BITFIELD arrives
+	private PieceBitfield bitfield = null;
 
 	// Host address of the peer
 	private String host = "";
@@ -81,21 +81,21 @@ public class NeighborPeer {
 	}
 
 	/**
-	 * Gets the bitfield array representing the parts of the file the peer has.
+	 * Gets the bitfield representing the parts of the file the peer has.
 	 *
-	 * @return The bitfield array.
+	 * @return The bitfield, or null if none has been received.
 	 */
-	public int[] getBitfield() {
-		return bitFieldArray;
+	public PieceBitfield getBitfield() {
+		return bitfield;
 	}
 
 	/**
 	 * Sets the bitfield representing the parts of the file that the peer has.
 	 *
-	 * @param bitfield The bitfield array to set.
+	 * @param bitfield The bitfield to set.
 	 */
-	public void setBitfield(int[] bitfield) {
-		this.bitFieldArray = bitfield;
+	public void setBitfield(PieceBitfield bitfield) {
+		this.bitfield = bitfield;
 	}
 
 }
@@ -0,0 +1,170 @@
+/**
+ * Tracks how well a neighbor serves our requests: request latency, timeouts, protocol errors and
+ * how long it has gone without delivering while it has us unchoked. Combined with the neighbor's
+ * download rate this gives a score used for piece requesting and optimistic unchoking.
+ * It also keeps the network round-trip time to the neighbor, which tells local peers from remote ones.
+ */
+public class PeerQuality {
+
+	// Weight of the newest sample in the request latency average
+	private static final double LATENCY_SMOOTHING = 0.25;
+
+	private int outstandingPiece = -1;  // Piece requested from the neighbor and not yet received, or -1
+	private long requestSentNanos = 0;  // When the outstanding request was sent
+	private double latencyMillis = 0;  // Smoothed time from REQUEST to PIECE
+	private int timeouts = 0;  // Requests that were not answered in time
+	private int protocolErrors = 0;  // Malformed or unexpected messages received from the neighbor
+	private boolean unchokedUs = false;  // Whether the neighbor currently has us unchoked
+	private long lastProgressNanos = System.nanoTime();  // Last unchoke or delivered piece, whichever is later
+	private boolean snubbed = false;  // Whether the neighbor has been marked as snubbing us
+	private double rttMillis = -1;  // Lowest network round-trip time measured, -1 until the first measurement
+
+
+	/**
+	 * Records a REQUEST sent to the neighbor.
+	 *
+	 * @param pieceIdx The index of the requested piece.
+	 */
+	public synchronized void onRequestSent(int pieceIdx) {
+		outstandingPiece = pieceIdx;
+		requestSentNanos = System.nanoTime();
+	}
+
+
+	/**
+	 * Records a piece delivered by the neighbor.
+	 *
+	 * @param pieceIdx The index of the delivered piece.
+	 */
+	public synchronized void onPieceReceived(int pieceIdx) {
+		long now = System.nanoTime();
+		if (pieceIdx == outstandingPiece) {
+			double sample = (now - requestSentNanos) / 1_000_000.0;
+			latencyMillis = (latencyMillis == 0) ? sample : latencyMillis + LATENCY_SMOOTHING * (sample - latencyMillis);
+			outstandingPiece = -1;
+		}
+		lastProgressNanos = now;
+		snubbed = false;
+	}
+
+
+	/**
+	 * Records that the neighbor unchoked or choked us. A choke drops the outstanding request,
+	 * since the neighbor will not answer it.
+	 *
+	 * @param unchoked True for UNCHOKE, false for CHOKE.
+	 */
+	public synchronized void onChokeStateChanged(boolean unchoked) {
+		unchokedUs = unchoked;
+		if (unchoked) {
+			lastProgressNanos = System.nanoTime();
+		} else {
+			outstandingPiece = -1;
+			snubbed = false;
+		}
+	}
+
+
+	/**
+	 * Records a measured network round-trip time, from the handshake or a PING/PONG exchange. Only the
+	 * lowest sample is kept: a probe can wait behind piece data in either direction, so higher samples
+	 * mostly measure queueing rather than the distance to the neighbor.
+	 *
+	 * @param rttNanos The measured round-trip time.
+	 */
+	public synchronized void onRttSample(long rttNanos) {
+		double sample = rttNanos / 1_000_000.0;
+		if (rttMillis < 0 || sample < rttMillis) {
+			rttMillis = sample;
+		}
+	}
+
+
+	// Records a malformed or unexpected message from the neighbor.
+	public synchronized void onProtocolError() {
+		protocolErrors++;
+	}
+
+
+	/**
+	 * Drops the outstanding request if it has waited longer than the timeout.
+	 *
+	 * @param timeoutNanos The request timeout.
+	 * @return The index of the piece whose request timed out, or -1.
+	 */
+	public synchronized int expireRequest(long timeoutNanos) {
+		if (outstandingPiece != -1 && System.nanoTime() - requestSentNanos > timeoutNanos) {
+			int expired = outstandingPiece;
+			outstandingPiece = -1;
+			timeouts++;
+			return expired;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Marks the neighbor as snubbing us if it has had us unchoked with a request pending but has
+	 * delivered nothing for the given time.
+	 *
+	 * @param snubNanos The time without progress after which a neighbor is snubbed.
+	 * @return True if the neighbor became snubbed in this call.
+	 */
+	public synchronized boolean checkSnubbed(long snubNanos) {
+		if (!snubbed && unchokedUs && outstandingPiece != -1 && System.nanoTime() - lastProgressNanos > snubNanos) {
+			snubbed = true;
+			return true;
+		}
+		return false;
+	}
+
+
+	public synchronized boolean isSnubbed() {
+		return snubbed;
+	}
+
+	public synchronized boolean hasUnchokedUs() {
+		return unchokedUs;
+	}
+
+	public synchronized boolean hasOutstandingRequest() {
+		return outstandingPiece != -1;
+	}
+
+	public synchronized int getOutstandingPiece() {
+		return outstandingPiece;
+	}
+
+	public synchronized double getRttMillis() {
+		return rttMillis;
+	}
+
+
+	/**
+	 * Checks whether the neighbor is close to us on the network. A neighbor whose round-trip time has
+	 * not been measured yet counts as remote.
+	 *
+	 * @param localRttMillis The round-trip time up to which a neighbor is local.
+	 * @return True if the neighbor is local.
+	 */
+	public synchronized boolean isLocal(double localRttMillis) {
+		return rttMillis >= 0 && rttMillis <= localRttMillis;
+	}
+
+
+	/**
+	 * Scores the neighbor as a source of pieces: its download rate, discounted by request latency,
+	 * timeouts and protocol errors. A snubbing neighbor scores 0.
+	 *
+	 * @param downloadRate The recent rate at which the neighbor sent us data, in bytes per second.
+	 * @return The score; higher is better.
+	 */
+	public synchronized double score(long downloadRate) {
+		if (snubbed) {
+			return 0;
+		}
+		double latencyPenalty = 1 + latencyMillis / 1000.0;
+		double reliabilityPenalty = 1 + timeouts + 2.0 * protocolErrors;
+		return (downloadRate + 1) / (latencyPenalty * reliabilityPenalty);
+	}
+}
@@ -1,12 +1,29 @@
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Utility class for peer-related operations in  P2P file sharing system.
  */
 public class PeerUtil {
+
+	// Offset of the content identifier in the handshake: the last four of the zero bytes
+	private static final int CONTENT_ID_OFFSET = Constants.HEADER_FOR_HANDSHAKE.length() + Constants.HEADER_FOR_ZERO_BITS_HANDSHAKE.length() - 4;
+
+	private PieceStorage storage = null;  // Backend holding the pieces of the local peer, safe for concurrent use
+	private PieceCache pieceCache = null;  // The piece cache inside the storage, or null if there is none
+	private PieceJournal pieceJournal = null;  // The resume journal inside the storage, or null if there is none
+	private MemoryStorage memoryStorage = null;  // The storage backend when pieces are kept in memory, or null
+	private PieceStore pieceStore = null;  // The host's piece store inside the storage, or null if there is none
+
 	/**
 	 * Default constructor.
 	 */
@@ -14,58 +31,237 @@ public class PeerUtil {
 	}
 
 
-
 	/**
-	 * Splits a file into multiple chunks and stores them in a peer's directory.
+	 * Opens the piece storage of a peer, using the backend selected by the StorageBackend setting:
+	 * "single-file" (the default) writes pieces in place into one preallocated file, "mmap" does the same
+	 * through a memory mapping of the file, "chunk-files" keeps every piece in its own file and
+	 * combines them at the end, and "memory" keeps every piece off-heap and writes the file once at
+	 * the end, if at all. Any backend but "memory" is replaced by in-place writes into the files of a
+	 * content set when one is configured. Unless PieceCacheSize is 0, reads go through a piece cache;
+	 * the mapped and memory backends are served without disk reads and get none. The storage is guarded by striped
+	 * per-piece locks, so uploads and downloads of different pieces never wait for each other.
+	 * A peer that starts with the complete file serves the original file without splitting or copying
+	 * it to its directory: from a read-only mapping with "mmap", from memory with "memory", and with
+	 * positional reads otherwise; a backend that does not apply is reported. A downloading peer records its pieces in
+	 * a journal unless ResumeJournal is 0 or the pieces are only in memory, so a restart resumes the download,
+	 * and publishes them to the host's piece store when PieceStore is set for a single file kept on disk.
 	 *
 	 * @param peerId The ID of the peer.
-	 * @param configFile The configuration file containing chunk size and other details.
+	 * @param configFile The configuration file containing file details.
+	 * @param storedPieces The pieces stored so far, kept up to date by the caller; used for read-ahead.
+	 * @param hasCompleteFile Whether the peer starts with the complete file.
+	 * @throws IOException If the storage cannot be opened.
 	 */
-	public void divideFileIntoChunks(String peerId, CommonConfigClass configFile) {
-		// Retrieve chunk size, number of chunks, file size, and file name from the configuration
-		int chunkSize = configFile.getChunkSize();
-		int numberOfChunks = configFile.getNumberOfChunks();
-		int fileSize = configFile.getFileSize();
-		String fileName = configFile.getFile();
+	public void openStorage(int peerId, CommonConfigClass configFile, PieceBitfield storedPieces, boolean hasCompleteFile) throws IOException {
+		File peerDirectory = new File(configFile.getDirectory(), "peer_" + peerId);
+		String backend = configFile.getStorageBackend();
+		boolean servedFromMemory = backend.equals("mmap") || backend.equals("memory");
+		if (hasCompleteFile) {
+			SourceFileStorage source = new SourceFileStorage(configFile.getDirectory(), configFile, backend);
+			servedFromMemory = source.isServedFromMemory();
+			if (!servedFromMemory && !backend.equals("single-file")) {
+				System.out.println("StorageBackend " + backend + " does not apply to " + configFile.getFile()
+						+ " as a seed; serving it in place with positional reads");
+			}
+			storage = source;
+			backend = "source";
+		} else if (configFile.getContentLayout() != null && !backend.equals("memory")) {
+			if (!backend.equals("single-file")) {
+				System.out.println("StorageBackend " + backend + " does not apply to a content set; writing its files in place");
+			}
+			backend = "content-set";
+			servedFromMemory = false;
+		}
+		switch (backend) {
+			case "source":
+				break;
+			case "content-set":
+				storage = new MultiFileStorage(peerDirectory, configFile.getContentLayout(), configFile);
+				break;
+			case "single-file":
+				storage = new SingleFileStorage(peerDirectory, configFile);
+				break;
+			case "mmap":
+				storage = new MappedFileStorage(peerDirectory, configFile, configFile.getMappedReadAhead(), storedPieces);
+				break;
+			case "chunk-files":
+				storage = new ChunkFileStorage(peerDirectory, configFile);
+				break;
+			case "memory":
+				memoryStorage = new MemoryStorage(peerDirectory, configFile);
+				storage = memoryStorage;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown StorageBackend: " + backend);
+		}
+		if (!hasCompleteFile && configFile.getPieceStoreDirectory() != null && configFile.getContentLayout() == null && !backend.equals("memory")) {
+			// Pieces written in place into the final file are published where they are
+			boolean inPlace = backend.equals("single-file") || backend.equals("mmap");
+			pieceStore = new PieceStore(storage, inPlace ? new File(peerDirectory, configFile.getFile()) : null, configFile.getPieceStoreDirectory(), configFile);
+			storage = pieceStore;
+		}
+		if (!hasCompleteFile && configFile.isResumeEnabled()) {
+			pieceJournal = new PieceJournal(storage, PieceJournal.journalFile(peerDirectory, configFile), configFile);
+			storage = pieceJournal;
+		}
+		if (configFile.getPieceCacheSize() > 0 && !servedFromMemory) {
+			pieceCache = new PieceCache(storage, configFile.getPieceCacheSize(), configFile.getPieceCacheReadAhead(), configFile, storedPieces);
+			storage = pieceCache;
+		}
+		storage = new StripedLockStorage(storage, configFile.getPieceLockStripes());
+	}
 
-		// Construct the path for the source file
-		String sourceFilePath = System.getProperty("user.dir") + File.separator + fileName;
 
-		// Use a try-with-resources statement to automatically close the FileInputStream
-		try (FileInputStream is = new FileInputStream(sourceFilePath)) {
-			int i = 0, totalBytesCopied = 0;
+	// Returns the piece storage opened for the peer.
+	public PieceStorage getStorage() {
+		return storage;
+	}
 
-			// Iterate over the number of chunks to create each chunk file
-			while (i < numberOfChunks) {
-				// Determine the size of the chunk to be copied
-				int bytesToCopy = Math.min(chunkSize, fileSize - totalBytesCopied);
-				byte[] buffer = new byte[bytesToCopy];
 
-				// Read the chunk from the source file
-				is.read(buffer);
+	/**
+	 * Finds the pieces that survived an earlier run of the download, checking them on every core.
+	 *
+	 * @param configFile The configuration file, used to find the manifest of the shared file.
+	 * @return The verified pieces, or an empty bitfield if the storage keeps no journal.
+	 * @throws IOException If the journal cannot be rewritten.
+	 */
+	public PieceBitfield recoverPieces(CommonConfigClass configFile) throws IOException {
+		if (pieceJournal == null) {
+			return new PieceBitfield(configFile.getNumberOfPieces());
+		}
+		PieceManifest manifest = PieceManifest.load(PieceManifest.manifestFile(configFile));
+		if (manifest != null && !manifest.matches(configFile)) {
+			manifest = null;
+		}
+		return pieceJournal.recover(Runtime.getRuntime().availableProcessors(), manifest);
+	}
 
-				// Construct the file name for the chunk
-				String chunkFileName = System.getProperty("user.dir") + File.separator + "peer_" + peerId + File.separator + fileName + "_" + i;
 
-				// Use a try-with-resources statement to automatically close the FileOutputStream
-				try (FileOutputStream os = new FileOutputStream(chunkFileName)) {
-					// Write the chunk to its file
-					os.write(buffer);
-				}
+	// Returns the piece cache of the storage, or null if reads are not cached.
+	public PieceCache getPieceCache() {
+		return pieceCache;
+	}
+
+
+	// Returns the host's piece store the storage publishes to, or null if pieces are not shared.
+	public PieceStore getPieceStore() {
+		return pieceStore;
+	}
+
+
+	// Returns the storage backend if it keeps the pieces in memory, or null.
+	public MemoryStorage getMemoryStorage() {
+		return memoryStorage;
+	}
+
+
+	/**
+	 * Closes the piece storage.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public void closeStorage() throws IOException {
+		if (storage != null) {
+			storage.close();
+		}
+	}
+
+
+
+	/**
+	 * Rebuilds every missing data and parity piece of an erasure-coded download once each stripe
+	 * holds enough pieces to be decoded. Stripes are decoded in parallel across the available cores.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param havePieces The pieces already stored.
+	 * @param configFile The configuration file containing the erasure coding parameters.
+	 * @return The indices of the pieces that were rebuilt.
+	 * @throws IOException If a piece cannot be read or written.
+	 */
+	public List<Integer> rebuildMissingPieces(int peerId, PieceBitfield havePieces, CommonConfigClass configFile) throws IOException {
+		int numberOfStripes = configFile.getNumberOfStripes();
+		List<Callable<List<Integer>>> tasks = new ArrayList<>();
+		for (int stripe = 0; stripe < numberOfStripes; stripe++) {
+			final int s = stripe;
+			tasks.add(() -> rebuildStripe(peerId, s, havePieces, configFile));
+		}
 
-				// Update the total number of bytes copied and move to the next chunk
-				totalBytesCopied += bytesToCopy;
-				i++;
+		ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, Math.min(numberOfStripes, Runtime.getRuntime().availableProcessors())));
+		List<Integer> rebuilt = new ArrayList<>();
+		try {
+			for (Future<List<Integer>> result : decoders.invokeAll(tasks)) {
+				rebuilt.addAll(result.get());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding pieces", ie);
+		} catch (ExecutionException ee) {
+			throw new IOException("Failed to decode pieces", ee.getCause());
+		} finally {
+			decoders.shutdown();
+		}
+		return rebuilt;
+	}
+
+
+	// Decodes one stripe, writing back its missing data pieces and recomputing its missing parity pieces.
+	private List<Integer> rebuildStripe(int peerId, int stripe, PieceBitfield havePieces, CommonConfigClass configFile) throws IOException {
+		int chunkSize = configFile.getChunkSize();
+		int dataPieces = configFile.getDataPiecesInStripe(stripe);
+		int parityPieces = configFile.getErasureParityPieces();
+		int firstDataIdx = stripe * configFile.getErasureDataPieces();
+		int firstParityIdx = configFile.getNumberOfChunks() + stripe * parityPieces;
+		List<Integer> rebuilt = new ArrayList<>();
+
+		// Load the pieces of the stripe we have, data first and parity after
+		byte[][] shards = new byte[dataPieces + parityPieces][];
+		boolean missingAny = false;
+		for (int i = 0; i < shards.length; i++) {
+			int pieceIdx = (i < dataPieces) ? firstDataIdx + i : firstParityIdx + i - dataPieces;
+			if (havePieces.get(pieceIdx)) {
+				shards[i] = fetchChunk(peerId, pieceIdx, configFile);
+			} else {
+				missingAny = true;
+			}
+		}
+		if (!missingAny) {
+			return rebuilt;
+		}
+
+		ErasureCoder coder = new ErasureCoder(dataPieces, parityPieces);
+		boolean[] dataWasMissing = new boolean[dataPieces];
+		for (int i = 0; i < dataPieces; i++) {
+			dataWasMissing[i] = shards[i] == null;
+		}
+		coder.decodeData(shards, chunkSize);
+
+		for (int i = 0; i < dataPieces; i++) {
+			if (dataWasMissing[i]) {
+				int pieceIdx = firstDataIdx + i;
+				// Decoded pieces are padded to the chunk size; trim the last piece of the file back to its real length
+				int pieceSize = (int) Math.min(chunkSize, configFile.getFileSize() - (long) pieceIdx * chunkSize);
+				saveChunk(peerId, pieceIdx, Arrays.copyOf(shards[i], pieceSize), configFile);
+				rebuilt.add(pieceIdx);
+			}
+		}
+
+		byte[][] data = Arrays.copyOf(shards, dataPieces);
+		byte[][] parity = null;
+		for (int j = 0; j < parityPieces; j++) {
+			if (shards[dataPieces + j] == null) {
+				if (parity == null) {
+					parity = coder.encode(data, chunkSize);
+				}
+				saveChunk(peerId, firstParityIdx + j, parity[j], configFile);
+				rebuilt.add(firstParityIdx + j);
 			}
-		} catch (IOException e) {
-			// Print the stack trace in case of an IOException
-			e.printStackTrace();
 		}
+		return rebuilt;
 	}
 
 
 	/**
-	 * Retrieves a chunk of data from a file associated with a given peer.
+	 * Retrieves a chunk of data from the piece storage of a given peer.
 	 *
 	 * @param peerId The ID of the peer.
 	 * @param chunkIndex The index of the chunk to retrieve.
@@ -73,32 +269,28 @@ public class PeerUtil {
 	 * @return The data of the specified chunk.
 	 * @throws IOException If an I/O error occurs.
 	 */
-	public synchronized byte[] fetchChunk(int peerId, int chunkIndex, CommonConfigClass configFile) throws IOException {
-		// Retrieve the file name from the configuration
-		String fileName = configFile.getFile();
-
-		// Construct the file name for the specific chunk
-		String chunkFileName = System.getProperty("user.dir") + File.separator + "peer_" + peerId + File.separator + fileName + "_" + chunkIndex;
-
-		// Create a File object to represent the chunk file
-		File chunkFile = new File(chunkFileName);
-
-		// Use a try-with-resources statement to automatically close the FileInputStream
-		try (FileInputStream fileInputStream = new FileInputStream(chunkFile)) {
-			// Allocate a byte array to hold the data of the chunk
-			byte[] chunkData = new byte[(int) chunkFile.length()];
+	public byte[] fetchChunk(int peerId, int chunkIndex, CommonConfigClass configFile) throws IOException {
+		return storage.readPiece(chunkIndex);
+	}
 
-			// Read the entire chunk data into the byte array
-			fileInputStream.read(chunkData);
 
-			// Return the byte array containing the chunk data
-			return chunkData;
-		}
+	/**
+	 * Retrieves a chunk for sending. With a memory-mapped storage the buffer is a view of the mapping,
+	 * so the piece is not copied onto the heap.
+	 *
+	 * @param peerId The ID of the peer.
+	 * @param chunkIndex The index of the chunk to retrieve.
+	 * @param configFile The configuration file containing file details.
+	 * @return A buffer holding exactly the data of the chunk.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public ByteBuffer fetchChunkBuffer(int peerId, int chunkIndex, CommonConfigClass configFile) throws IOException {
+		return storage.readPieceBuffer(chunkIndex);
 	}
 
 
 	/**
-	 * Stores a chunk of data in the directory of a specified peer.
+	 * Stores a chunk of data in the piece storage of a specified peer.
 	 *
 	 * @param peerId The ID of the peer.
 	 * @param chunkIndex The index of the chunk.
@@ -106,60 +298,32 @@ public class PeerUtil {
 	 * @param configFile The configuration file containing file details.
 	 * @throws IOException If an I/O error occurs.
 	 */
-	public synchronized void saveChunk(int peerId, int chunkIndex, byte[] chunkData, CommonConfigClass configFile) throws IOException {
-		// Retrieve the file name from the configuration
-		String fileName = configFile.getFile();
-
-		// Construct the file name for the specific chunk
-		String chunkFileName = System.getProperty("user.dir") + File.separator + "peer_" + peerId + File.separator + fileName + "_" + chunkIndex;
+	public void saveChunk(int peerId, int chunkIndex, byte[] chunkData, CommonConfigClass configFile) throws IOException {
+		storage.writePiece(chunkIndex, chunkData);
+	}
 
-		// Create a File object to represent the chunk file
-		File chunkFile = new File(chunkFileName);
 
-		// Use a try-with-resources statement to automatically close the FileOutputStream
-		try (FileOutputStream os = new FileOutputStream(chunkFile)) {
-			// Write the chunk data to the file
-			os.write(chunkData);
-		}
+	/**
+	 * Starts an asynchronous writer over the peer's piece storage.
+	 *
+	 * @param configFile The configuration file containing the write queue and sync settings.
+	 * @return The started writer.
+	 */
+	public PieceWriter startWriter(CommonConfigClass configFile) {
+		return new PieceWriter(storage, configFile.getWriteQueuePieces(), configFile.getSyncEveryPieces(), configFile.getSyncIntervalMillis());
 	}
 
 
 	/**
-	 * Combines multiple chunks into a single file in the specified peer's directory.
+	 * Makes the complete file available in the specified peer's directory: combines the chunk files,
+	 * or only flushes the file when the pieces were written in place.
 	 *
 	 * @param peerId The ID of the peer.
 	 * @param configFile The configuration file containing the number of chunks.
 	 * @throws IOException If an I/O error occurs.
 	 */
-	public synchronized void mixChunksIntoFile(int peerId, CommonConfigClass configFile) throws IOException {
-		// Retrieve the total number of chunks and the file name from the configuration
-		int numberOfChunks = configFile.getNumberOfChunks();
-		String fileName = configFile.getFile();
-
-		// Construct the file name for the destination combined file
-		String destinationFileName = System.getProperty("user.dir") + File.separator + "peer_" + peerId + File.separator + fileName;
-		File combinedFile = new File(destinationFileName);
-
-		// Use a try-with-resources statement to automatically close the FileOutputStream
-		try (FileOutputStream os = new FileOutputStream(combinedFile)) {
-			// Iterate through each chunk
-			for (int i = 0; i < numberOfChunks; i++) {
-				// Construct the file name for each chunk
-				File chunkFile = new File(System.getProperty("user.dir") + File.separator + "peer_" + peerId + File.separator + fileName + "_" + i);
-
-				// Use a try-with-resources statement to automatically close the FileInputStream
-				try (FileInputStream is = new FileInputStream(chunkFile)) {
-					// Allocate a byte array to hold the data of the chunk
-					byte[] chunkData = new byte[(int) chunkFile.length()];
-
-					// Read the entire chunk data into the byte array
-					is.read(chunkData);
-
-					// Write the chunk data to the destination file
-					os.write(chunkData);
-				}
-			}
-		}
+	public void mixChunksIntoFile(int peerId, CommonConfigClass configFile) throws IOException {
+		storage.finish();
 	}
 
 
@@ -167,20 +331,21 @@ public class PeerUtil {
 	 * Creates a directory and a log file for a specific peer.
 	 *
 	 * @param peerId The ID of the peer.
+	 * @param baseDirectory The directory of the swarm.
 	 * @return The created log file.
 	 */
-	public File buildDirectoryAndLogFile(int peerId) {
+	public File buildDirectoryAndLogFile(int peerId, File baseDirectory) {
 		File logFile = null;
 		try {
 			// Create a directory specific to the peer using its peerId
-			File peerDirectory = new File(System.getProperty("user.dir") + File.separator + "peer_" + peerId);
+			File peerDirectory = new File(baseDirectory, "peer_" + peerId);
 			// Check if the directory already exists, if not, create it
 			if (!peerDirectory.exists()) {
 				peerDirectory.mkdir();
 			}
 
 			// Create a log file specific to the peer in its directory
-			logFile = new File(System.getProperty("user.dir") + File.separator + "log_peer_" + peerId + ".log");
+			logFile = new File(baseDirectory, "log_peer_" + peerId + ".log");
 			// Check if the log file needs to be created, and if so, create it
 			if (logFile.createNewFile()) {
 				System.out.println("Log file has been created"); // Log the creation of the file
@@ -194,12 +359,15 @@ public class PeerUtil {
 
 
 	/**
-	 * Generates a handshake packet for initiating communication with another peer.
+	 * Generates a handshake packet for initiating communication with another peer. The last four of
+	 * the zero bytes carry the content identifier of the swarm, so a listener shared by several
+	 * swarms knows which one the connection is for.
 	 *
 	 * @param sourcePeerId The ID of the source peer.
+	 * @param contentId The content identifier of the swarm.
 	 * @return The handshake packet as a byte array.
 	 */
-	public synchronized byte[] generateHandshakePacket(int sourcePeerId) {
+	public byte[] generateHandshakePacket(int sourcePeerId, int contentId) {
 		// Define the handshake header as specified in the Constants
 		String handshakeHeader = Constants.HEADER_FOR_HANDSHAKE;
 		byte[] headerBytes = handshakeHeader.getBytes(); // Convert the header to bytes
@@ -231,9 +399,25 @@ public class PeerUtil {
 			handshakePacket[index++] = b;
 		}
 
+		// Put the content identifier over the end of the zero bytes
+		ByteBuffer.wrap(handshakePacket, CONTENT_ID_OFFSET, 4).putInt(contentId);
+
 		// Return the assembled handshake packet
 		return handshakePacket;
 	}
 
 
+	/**
+	 * Reads the content identifier from a received handshake packet.
+	 *
+	 * @param handshakePacket The 32-byte handshake.
+	 * @return The content identifier, or 0 if the sender left the zero bytes unchanged.
+	 */
+	public static int readContentId(byte[] handshakePacket) {
+		int contentId = ByteBuffer.wrap(handshakePacket, CONTENT_ID_OFFSET, 4).getInt();
+		int unchanged = ByteBuffer.wrap(Constants.HEADER_FOR_ZERO_BITS_HANDSHAKE.getBytes(), 0, 4).getInt();
+		return (contentId == unchanged) ? 0 : contentId;
+	}
+
+
 }
@@ -0,0 +1,185 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Which pieces of the shared file a peer has, one bit per piece. Bits are only ever set, each with an
+ * atomic update, so the bitfield can be read and extended from any thread without locking, and a
+ * running count makes completion checks constant-time. It travels as a BITFIELD payload of one bit
+ * per piece, the first piece in the high bit of the first byte and the spare bits of the last byte zero.
+ */
+public class PieceBitfield {
+
+	private final int size;  // Number of pieces
+	private final AtomicLongArray words;  // Bit i of word w is piece w * 64 + i
+	private final AtomicInteger count = new AtomicInteger(0);  // Number of set bits
+
+
+	/**
+	 * Creates a bitfield with no pieces set.
+	 *
+	 * @param size The number of pieces.
+	 */
+	public PieceBitfield(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative number of pieces: " + size);
+		}
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+
+
+	/**
+	 * Decodes a BITFIELD payload.
+	 *
+	 * @param payload The packed bits.
+	 * @param size The number of pieces.
+	 * @return The bitfield.
+	 * @throws IllegalArgumentException If the payload length does not fit the number of pieces or a spare bit is set.
+	 */
+	public static PieceBitfield fromBytes(byte[] payload, int size) {
+		if (payload.length != byteLength(size)) {
+			throw new IllegalArgumentException("BITFIELD of " + payload.length + " bytes for " + size + " pieces");
+		}
+		PieceBitfield bitfield = new PieceBitfield(size);
+		for (int b = 0; b < payload.length; b++) {
+			for (int bit = 0; bit < 8 && payload[b] != 0; bit++) {
+				if ((payload[b] & (0x80 >>> bit)) != 0) {
+					int pieceIdx = b * 8 + bit;
+					if (pieceIdx >= size) {
+						throw new IllegalArgumentException("BITFIELD sets spare bit " + pieceIdx);
+					}
+					bitfield.set(pieceIdx);
+				}
+			}
+		}
+		return bitfield;
+	}
+
+
+	// Returns the number of bytes in the BITFIELD payload for the given number of pieces.
+	public static int byteLength(int size) {
+		return (int) ((size + 7L) >>> 3);
+	}
+
+
+	/**
+	 * Encodes the bitfield as a BITFIELD payload.
+	 *
+	 * @return The packed bits.
+	 */
+	public byte[] toBytes() {
+		byte[] payload = new byte[byteLength(size)];
+		for (int w = 0; w < words.length(); w++) {
+			long word = words.get(w);
+			while (word != 0) {
+				int pieceIdx = (w << 6) + Long.numberOfTrailingZeros(word);
+				payload[pieceIdx >>> 3] |= (byte) (0x80 >>> (pieceIdx & 7));
+				word &= word - 1;
+			}
+		}
+		return payload;
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+	// Returns whether the peer has the piece.
+	public boolean get(int pieceIdx) {
+		return (words.get(pieceIdx >>> 6) & (1L << pieceIdx)) != 0;
+	}
+
+
+	/**
+	 * Marks a piece as present.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return True if the piece was not marked before.
+	 */
+	public boolean set(int pieceIdx) {
+		if (pieceIdx < 0 || pieceIdx >= size) {
+			throw new IndexOutOfBoundsException("Piece " + pieceIdx + " of " + size);
+		}
+		int w = pieceIdx >>> 6;
+		long mask = 1L << pieceIdx;
+		while (true) {
+			long word = words.get(w);
+			if ((word & mask) != 0) {
+				return false;
+			}
+			if (words.compareAndSet(w, word, word | mask)) {
+				count.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+
+	// Marks every piece as present.
+	public void setAll() {
+		for (int pieceIdx = nextClearBit(0); pieceIdx < size; pieceIdx = nextClearBit(pieceIdx + 1)) {
+			set(pieceIdx);
+		}
+	}
+
+
+	// Returns the number of pieces present.
+	public int cardinality() {
+		return count.get();
+	}
+
+	// Returns whether every piece is present.
+	public boolean isComplete() {
+		return count.get() == size;
+	}
+
+
+	/**
+	 * Finds the next present piece.
+	 *
+	 * @param from The index to start at.
+	 * @return The index of the first present piece at or after from, or -1 if there is none.
+	 */
+	public int nextSetBit(int from) {
+		if (from >= size) {
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words.get(w) & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				int pieceIdx = (w << 6) + Long.numberOfTrailingZeros(word);
+				return (pieceIdx < size) ? pieceIdx : -1;
+			}
+			if (++w == words.length()) {
+				return -1;
+			}
+			word = words.get(w);
+		}
+	}
+
+
+	/**
+	 * Finds the next missing piece.
+	 *
+	 * @param from The index to start at.
+	 * @return The index of the first missing piece at or after from, or size if there is none.
+	 */
+	public int nextClearBit(int from) {
+		if (from >= size) {
+			return size;
+		}
+		int w = from >>> 6;
+		long word = ~words.get(w) & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+			}
+			if (++w == words.length()) {
+				return size;
+			}
+			word = ~words.get(w);
+		}
+	}
+}
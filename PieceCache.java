@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Size-bounded LRU cache of piece data in front of a storage backend, for the upload path where the
+ * same popular pieces are requested by many neighbors. Concurrent misses on one piece share a single
+ * read, and a miss can optionally load the following stored pieces in the background for neighbors
+ * that request sequentially. Cached data is never handed out for modification: uploads get read-only
+ * views and other readers get copies.
+ */
+public class PieceCache implements PieceStorage {
+
+	private final PieceStorage storage;  // Backend the pieces are read from and written to
+	private final long capacity;  // Most bytes of piece data kept in the cache
+	private final int readAhead;  // Pieces after a miss to load in the background, 0 to disable
+	private final int numberOfChunks;  // Read-ahead never goes past the last data piece
+	private final PieceBitfield storedPieces;  // Pieces whose data is in the backend; only those are read ahead
+
+	// Cached pieces in access order, least recently used first; guarded by this
+	private final LinkedHashMap<Integer, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedBytes = 0;  // Bytes held in entries
+	private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();  // Reads in progress
+	private final ExecutorService readAheadPool;  // Background thread for read-ahead, or null
+
+	private long hits = 0;  // Reads answered from the cache, including ones that joined a read in progress
+	private long misses = 0;  // Reads that went to the backend
+	private long evictions = 0;  // Pieces dropped to stay within the capacity
+	private long bytesFromCache = 0;  // Bytes answered from the cache
+
+
+	/**
+	 * Creates a cache in front of a backend.
+	 *
+	 * @param storage The backend.
+	 * @param capacity The most bytes of piece data to keep.
+	 * @param readAhead The number of following pieces to load after a miss, or 0.
+	 * @param configFile The configuration file containing the number of chunks.
+	 * @param storedPieces The pieces already stored in the backend.
+	 */
+	public PieceCache(PieceStorage storage, long capacity, int readAhead, CommonConfigClass configFile, PieceBitfield storedPieces) {
+		this.storage = storage;
+		this.capacity = capacity;
+		this.readAhead = Math.max(0, readAhead);
+		this.numberOfChunks = configFile.getNumberOfChunks();
+		this.storedPieces = storedPieces;
+		this.readAheadPool = (this.readAhead > 0) ? Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "Read-ahead thread");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		byte[] data = load(pieceIdx, true);
+		return Arrays.copyOf(data, data.length);
+	}
+
+
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) throws IOException {
+		return ByteBuffer.wrap(load(pieceIdx, true)).asReadOnlyBuffer();
+	}
+
+
+	/**
+	 * Writes the piece to the backend and drops any cached copy of it.
+	 */
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		storage.writePiece(pieceIdx, data);
+		synchronized (this) {
+			byte[] old = entries.remove(pieceIdx);
+			if (old != null) {
+				cachedBytes -= old.length;
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the run to the backend and drops any cached copies of its pieces.
+	 */
+	@Override
+	public void writePieces(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		storage.writePieces(firstPieceIdx, pieces);
+		synchronized (this) {
+			for (int i = 0; i < pieces.size(); i++) {
+				byte[] old = entries.remove(firstPieceIdx + i);
+				if (old != null) {
+					cachedBytes -= old.length;
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public void sync() throws IOException {
+		storage.sync();
+	}
+
+
+	@Override
+	public void finish() throws IOException {
+		storage.finish();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		if (readAheadPool != null) {
+			readAheadPool.shutdownNow();
+		}
+		storage.close();
+	}
+
+
+	// Returns the cached data of a piece, reading it once from the backend on a miss.
+	private byte[] load(int pieceIdx, boolean countAccess) throws IOException {
+		synchronized (this) {
+			byte[] data = entries.get(pieceIdx);
+			if (data != null) {
+				if (countAccess) {
+					hits++;
+					bytesFromCache += data.length;
+				}
+				return data;
+			}
+		}
+
+		// Join a read of the same piece that is already in progress instead of reading it again
+		CompletableFuture<byte[]> pending = new CompletableFuture<>();
+		CompletableFuture<byte[]> inProgress = loading.putIfAbsent(pieceIdx, pending);
+		if (inProgress != null) {
+			byte[] data = await(inProgress);
+			if (countAccess) {
+				synchronized (this) {
+					hits++;
+					bytesFromCache += data.length;
+				}
+			}
+			return data;
+		}
+
+		byte[] data;
+		try {
+			data = storage.readPiece(pieceIdx);
+			insert(pieceIdx, data);
+			pending.complete(data);
+		} catch (IOException | RuntimeException e) {
+			pending.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(pieceIdx, pending);
+		}
+		if (countAccess) {
+			synchronized (this) {
+				misses++;
+			}
+			scheduleReadAhead(pieceIdx);
+		}
+		return data;
+	}
+
+
+	// Waits for a read started by another thread.
+	private static byte[] await(CompletableFuture<byte[]> read) throws IOException {
+		try {
+			return read.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a piece read", ie);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+		}
+	}
+
+
+	// Adds a piece and evicts the least recently used ones until the cache fits its capacity.
+	private synchronized void insert(int pieceIdx, byte[] data) {
+		if (data.length > capacity) {
+			return;
+		}
+		byte[] old = entries.put(pieceIdx, data);
+		cachedBytes += data.length - ((old != null) ? old.length : 0);
+		Iterator<Map.Entry<Integer, byte[]>> eldest = entries.entrySet().iterator();
+		while (cachedBytes > capacity && eldest.hasNext()) {
+			Map.Entry<Integer, byte[]> entry = eldest.next();
+			if (entry.getKey() != pieceIdx) {
+				cachedBytes -= entry.getValue().length;
+				eldest.remove();
+				evictions++;
+			}
+		}
+	}
+
+
+	// Loads the stored pieces after a missed one in the background.
+	private void scheduleReadAhead(int pieceIdx) {
+		if (readAheadPool == null || pieceIdx >= numberOfChunks) {
+			return;
+		}
+		try {
+			readAheadPool.execute(() -> readAhead(pieceIdx));
+		} catch (RejectedExecutionException e) {
+			// The cache is closing
+		}
+	}
+
+
+	// Loads the stored pieces following the given one into the cache.
+	private void readAhead(int pieceIdx) {
+		for (int next = pieceIdx + 1; next <= pieceIdx + readAhead && next < numberOfChunks; next++) {
+			if (!storedPieces.get(next)) {
+				continue;
+			}
+			try {
+				load(next, false);
+			} catch (IOException e) {
+				// Read-ahead is only a hint; the piece is read again when it is requested
+			}
+		}
+	}
+
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getBytesFromCache() {
+		return bytesFromCache;
+	}
+}
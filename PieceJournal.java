@@ -0,0 +1,291 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * Records every piece written to a storage in an append-only journal ("FileName.journal" in the
+ * peer's directory), so a download interrupted by a crash or restart resumes where it stopped.
+ * Each record holds the piece index and the CRC32C of its data. On restart the journal is replayed
+ * and every recorded piece is read back and checked against its checksum in parallel across the
+ * cores; only pieces that match count as present. A record may reach the disk before its data, so
+ * the check, not the journal, decides what survived.
+ */
+public class PieceJournal implements PieceStorage {
+
+	// Marks the start of a journal file and is mixed into every record's check value
+	private static final int MAGIC = 0x50324A4C;
+	// Size of the header: magic, file size, chunk size and number of pieces
+	private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+	// Size of a record: piece index, checksum and check value
+	private static final int RECORD_SIZE = 4 + 4 + 4;
+
+	private final PieceStorage storage;  // The storage whose writes are recorded
+	private final File journalFile;  // The journal on disk
+	private final CommonConfigClass configFile;  // Gives the sizes the journal was written for
+	private PieceBitfield replayed;  // Pieces found in the journal
+	private int[] replayedChecksums = null;  // Their checksums, by piece; allocated only when a journal is replayed
+	private FileChannel journalChannel = null;  // Open for appending once recover() has run
+
+
+	/**
+	 * Wraps a storage and reads its journal, if there is one for the same file and piece sizes.
+	 *
+	 * @param storage The storage whose writes are recorded.
+	 * @param journalFile The journal file.
+	 * @param configFile The configuration file containing file details.
+	 * @throws IOException If the journal exists but cannot be read.
+	 */
+	public PieceJournal(PieceStorage storage, File journalFile, CommonConfigClass configFile) throws IOException {
+		this.storage = storage;
+		this.journalFile = journalFile;
+		this.configFile = configFile;
+		this.replayed = new PieceBitfield(configFile.getNumberOfPieces());
+		if (journalFile.exists()) {
+			replay();
+		}
+	}
+
+
+	// Returns the journal file of a peer.
+	public static File journalFile(File peerDirectory, CommonConfigClass configFile) {
+		return new File(peerDirectory, configFile.getFile() + ".journal");
+	}
+
+
+	// Reads the records of the journal, keeping the last one of each piece and stopping at the first torn record.
+	private void replay() throws IOException {
+		if (!matches(journalFile, configFile)) {
+			return;
+		}
+		replayedChecksums = new int[configFile.getNumberOfPieces()];
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+			is.skipBytes(HEADER_SIZE);
+			while (true) {
+				int pieceIdx = is.readInt();
+				int checksum = is.readInt();
+				if (is.readInt() != checkValue(pieceIdx, checksum) || pieceIdx < 0 || pieceIdx >= configFile.getNumberOfPieces()) {
+					break;
+				}
+				replayed.set(pieceIdx);
+				replayedChecksums[pieceIdx] = checksum;
+			}
+		} catch (EOFException e) {
+			// The journal ends here, possibly in the middle of a record written during a crash
+		}
+	}
+
+
+	/**
+	 * Checks whether a journal was written for the file and piece sizes in the configuration.
+	 *
+	 * @param journalFile The journal file.
+	 * @param configFile The configuration file containing file details.
+	 * @return True if the journal exists and belongs to this download.
+	 */
+	public static boolean matches(File journalFile, CommonConfigClass configFile) {
+		try (DataInputStream is = new DataInputStream(new FileInputStream(journalFile))) {
+			return is.readInt() == MAGIC && is.readLong() == configFile.getFileSize() && is.readInt() == configFile.getChunkSize()
+					&& is.readInt() == configFile.getNumberOfPieces();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Checks the pieces recorded in the journal against the data in the storage, then starts a new
+	 * journal holding only the pieces that passed. Must be called once, before any piece is written.
+	 * When a manifest of the shared file is available, data pieces must also match its digests, which
+	 * catches a file that changed without changing size.
+	 *
+	 * @param threads The number of threads the pieces are checked on.
+	 * @param manifest The manifest of the shared file, or null.
+	 * @return The pieces whose data matches the journal.
+	 * @throws IOException If the journal cannot be rewritten.
+	 */
+	public PieceBitfield recover(int threads, PieceManifest manifest) throws IOException {
+		// Every thread checks the journaled pieces of one contiguous range of indices
+		PieceBitfield verified = new PieceBitfield(replayed.size());
+		int rangeSize = Math.max(1, (replayed.size() + threads - 1) / threads);
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int start = 0; start < replayed.size(); start += rangeSize) {
+			int from = start;
+			int to = Math.min(replayed.size(), start + rangeSize);
+			tasks.add(() -> {
+				verify(from, to, manifest, verified);
+				return null;
+			});
+		}
+
+		ExecutorService verifiers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+		try {
+			for (Future<Void> result : verifiers.invokeAll(tasks)) {
+				result.get();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while verifying pieces", ie);
+		} catch (ExecutionException ee) {
+			throw new IOException("Failed to verify pieces", ee.getCause());
+		} finally {
+			verifiers.shutdown();
+		}
+
+		// Start over with only the verified records, replacing the old journal in one step
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4096 * RECORD_SIZE);
+			buffer.putInt(MAGIC).putLong(configFile.getFileSize()).putInt(configFile.getChunkSize()).putInt(configFile.getNumberOfPieces());
+			for (int pieceIdx = verified.nextSetBit(0); pieceIdx >= 0; pieceIdx = verified.nextSetBit(pieceIdx + 1)) {
+				if (buffer.remaining() < RECORD_SIZE) {
+					writeFully(channel, buffer);
+				}
+				putRecord(buffer, pieceIdx, replayedChecksums[pieceIdx]);
+			}
+			writeFully(channel, buffer);
+			channel.force(true);
+		}
+		Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		replayed = null;
+		replayedChecksums = null;
+		return verified;
+	}
+
+
+	// Marks the journaled pieces in [from, to) whose stored data matches their checksum and the manifest.
+	private void verify(int from, int to, PieceManifest manifest, PieceBitfield verified) {
+		for (int pieceIdx = replayed.nextSetBit(from); pieceIdx >= 0 && pieceIdx < to; pieceIdx = replayed.nextSetBit(pieceIdx + 1)) {
+			try {
+				ByteBuffer data = storage.readPieceBuffer(pieceIdx);
+				boolean matchesManifest = manifest == null || pieceIdx >= configFile.getNumberOfChunks()
+						|| manifest.isPieceIntact(pieceIdx, data);
+				if (matchesManifest && checksum(data) == replayedChecksums[pieceIdx]) {
+					verified.set(pieceIdx);
+				}
+			} catch (IOException e) {
+				// A piece that cannot be read back is downloaded again
+			}
+		}
+	}
+
+
+	// Writes out the buffered bytes and clears the buffer.
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+
+	// Returns the CRC32C of the remaining bytes of a buffer.
+	private static int checksum(ByteBuffer data) {
+		CRC32C crc = new CRC32C();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+
+	// Returns the value that lets replay tell a complete record from a torn one.
+	private static int checkValue(int pieceIdx, int checksum) {
+		return Integer.rotateLeft(pieceIdx, 16) ^ checksum ^ MAGIC;
+	}
+
+
+	private static void putRecord(ByteBuffer buffer, int pieceIdx, int checksum) {
+		buffer.putInt(pieceIdx).putInt(checksum).putInt(checkValue(pieceIdx, checksum));
+	}
+
+
+	// Appends the records of pieces that were just written.
+	private synchronized void append(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		if (journalChannel == null) {
+			throw new IllegalStateException("recover() must run before pieces are written");
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(pieces.size() * RECORD_SIZE);
+		for (int i = 0; i < pieces.size(); i++) {
+			putRecord(buffer, firstPieceIdx + i, checksum(ByteBuffer.wrap(pieces.get(i))));
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			journalChannel.write(buffer);
+		}
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		return storage.readPiece(pieceIdx);
+	}
+
+
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) throws IOException {
+		return storage.readPieceBuffer(pieceIdx);
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		storage.writePiece(pieceIdx, data);
+		append(pieceIdx, List.of(data));
+	}
+
+
+	@Override
+	public void writePieces(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		storage.writePieces(firstPieceIdx, pieces);
+		append(firstPieceIdx, pieces);
+	}
+
+
+	/**
+	 * Syncs the data before the journal, so a synced record always describes synced data.
+	 */
+	@Override
+	public void sync() throws IOException {
+		storage.sync();
+		synchronized (this) {
+			if (journalChannel != null) {
+				journalChannel.force(false);
+			}
+		}
+	}
+
+
+	@Override
+	public void finish() throws IOException {
+		storage.finish();
+		sync();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (journalChannel != null) {
+				journalChannel.close();
+			}
+		}
+		storage.close();
+	}
+}
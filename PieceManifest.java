@@ -0,0 +1,382 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-piece content hashes of a shared file, written next to Common.cfg as "FileName.manifest".
+ * Each data piece has an rsync-style rolling checksum and a SHA-256 digest, which lets a peer that
+ * holds an older version of the file find the unchanged pieces at any offset of its old copy.
+ * The manifest records the size and modification time of the file it was built from, and the
+ * SHA-256 of all piece digests is its root hash: the version of the file it describes. Seeds
+ * announce the root hash, so a peer never trusts a manifest left over from an older version.
+ */
+public class PieceManifest {
+
+	// Marks the start of a manifest file
+	private static final int MAGIC = 0x50324D47;
+
+	// Length of a root hash
+	public static final int ROOT_HASH_SIZE = 32;
+
+	private final long fileSize;  // Size of the file the manifest describes
+	private final long fileModified;  // Modification time of the file when it was hashed
+	private final int chunkSize;  // Piece size used when hashing
+	private final int[] weakHashes;  // Rolling checksum of every data piece
+	private final byte[][] strongHashes;  // SHA-256 digest of every data piece
+	private final byte[] rootHash;  // SHA-256 of the piece digests, identifying the version of the file
+
+
+	private PieceManifest(long fileSize, long fileModified, int chunkSize, int[] weakHashes, byte[][] strongHashes) {
+		this.fileSize = fileSize;
+		this.fileModified = fileModified;
+		this.chunkSize = chunkSize;
+		this.weakHashes = weakHashes;
+		this.strongHashes = strongHashes;
+		MessageDigest digest = newDigest();
+		for (byte[] hash : strongHashes) {
+			digest.update(hash);
+		}
+		this.rootHash = digest.digest();
+	}
+
+
+	/**
+	 * Returns the location of the manifest for the configured file.
+	 *
+	 * @param configFile The configuration file naming the shared file.
+	 * @return The manifest file next to Common.cfg.
+	 */
+	public static File manifestFile(CommonConfigClass configFile) {
+		return new File(configFile.getDirectory(), configFile.getFile() + ".manifest");
+	}
+
+
+	/**
+	 * Hashes every data piece of a file. The modification time is taken before the file is read, so a
+	 * file changed while it is hashed is not described by the manifest.
+	 *
+	 * @param file The complete file.
+	 * @param configFile The configuration file containing file and chunk sizes.
+	 * @return The manifest of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static PieceManifest build(File file, CommonConfigClass configFile) throws IOException {
+		int chunkSize = configFile.getChunkSize();
+		int numberOfChunks = configFile.getNumberOfChunks();
+		int[] weakHashes = new int[numberOfChunks];
+		byte[][] strongHashes = new byte[numberOfChunks][];
+		MessageDigest digest = newDigest();
+		long fileModified = file.lastModified();
+
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			byte[] buffer = new byte[chunkSize];
+			for (int i = 0; i < numberOfChunks; i++) {
+				int length = (int) Math.min(chunkSize, configFile.getFileSize() - (long) i * chunkSize);
+				new DataInputStream(is).readFully(buffer, 0, length);
+				weakHashes[i] = weakHash(buffer, 0, length);
+				digest.update(buffer, 0, length);
+				strongHashes[i] = digest.digest();
+			}
+		}
+		return new PieceManifest(configFile.getFileSize(), fileModified, chunkSize, weakHashes, strongHashes);
+	}
+
+
+	/**
+	 * Reads a manifest written by {@link #save(File)}.
+	 *
+	 * @param file The manifest file.
+	 * @return The manifest, or null if the file does not exist or is not a manifest.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static PieceManifest load(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (is.readInt() != MAGIC) {
+				return null;
+			}
+			long fileSize = is.readLong();
+			long fileModified = is.readLong();
+			int chunkSize = is.readInt();
+			int count = is.readInt();
+			int[] weakHashes = new int[count];
+			byte[][] strongHashes = new byte[count][32];
+			for (int i = 0; i < count; i++) {
+				weakHashes[i] = is.readInt();
+				is.readFully(strongHashes[i]);
+			}
+			return new PieceManifest(fileSize, fileModified, chunkSize, weakHashes, strongHashes);
+		}
+	}
+
+
+	/**
+	 * Writes the manifest to disk. It is written to a temporary file first and then renamed, so a peer
+	 * loading the manifest never sees it half written.
+	 *
+	 * @param file The destination file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save(File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			os.writeInt(MAGIC);
+			os.writeLong(fileSize);
+			os.writeLong(fileModified);
+			os.writeInt(chunkSize);
+			os.writeInt(weakHashes.length);
+			for (int i = 0; i < weakHashes.length; i++) {
+				os.writeInt(weakHashes[i]);
+				os.write(strongHashes[i]);
+			}
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * Checks whether the manifest was built for the file described by the configuration.
+	 *
+	 * @param configFile The configuration file containing file and chunk sizes.
+	 * @return True if the sizes match.
+	 */
+	public boolean matches(CommonConfigClass configFile) {
+		return fileSize == configFile.getFileSize() && chunkSize == configFile.getChunkSize()
+				&& weakHashes.length == configFile.getNumberOfChunks();
+	}
+
+
+	/**
+	 * Checks whether the manifest was built from the file as it is now, judged by its size and
+	 * modification time.
+	 *
+	 * @param file The file the manifest was built from.
+	 * @return True if the file has not changed since it was hashed.
+	 */
+	public boolean describes(File file) {
+		return file.length() == fileSize && file.lastModified() == fileModified;
+	}
+
+
+	/**
+	 * Returns the root hash, which identifies the version of the file.
+	 *
+	 * @return The SHA-256 of the piece digests.
+	 */
+	public byte[] getRootHash() {
+		return rootHash.clone();
+	}
+
+
+	/**
+	 * Checks whether the manifest describes the version with the given root hash.
+	 *
+	 * @param root A root hash announced by a neighbor.
+	 * @return True if it is this manifest's root hash.
+	 */
+	public boolean hasRootHash(byte[] root) {
+		return MessageDigest.isEqual(rootHash, root);
+	}
+
+
+	/**
+	 * Returns the SHA-256 digest of a data piece.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return The digest.
+	 */
+	public byte[] getPieceHash(int pieceIdx) {
+		return strongHashes[pieceIdx];
+	}
+
+
+	/**
+	 * Checks a data piece against its digest.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @param data The data of the piece; its position is left unchanged.
+	 * @return True if the data hashes to the piece's digest.
+	 */
+	public boolean isPieceIntact(int pieceIdx, ByteBuffer data) {
+		MessageDigest digest = newDigest();
+		digest.update(data.duplicate());
+		return MessageDigest.isEqual(digest.digest(), strongHashes[pieceIdx]);
+	}
+
+
+	/**
+	 * Interface for receiving pieces found in an older copy of the file.
+	 */
+	public interface PieceSink {
+		void accept(int pieceIdx, byte[] data) throws IOException;
+	}
+
+
+	/**
+	 * Scans an older version of the file for pieces of the new version. Full-size pieces are matched at any
+	 * byte offset with a rolling checksum confirmed by SHA-256, so content that moved because of insertions
+	 * or deletions is still found. The shorter last piece is only looked for at its own offset and at the end.
+	 *
+	 * @param oldFile The older version of the file.
+	 * @param sink Receives the data of every piece found, once per piece.
+	 * @return The number of pieces found.
+	 * @throws IOException If the old file cannot be read or a piece cannot be stored.
+	 */
+	public int findPieces(File oldFile, PieceSink sink) throws IOException {
+		boolean[] found = new boolean[weakHashes.length];
+		int foundCount = 0;
+		MessageDigest digest = newDigest();
+
+		// Full-size pieces grouped by rolling checksum
+		Map<Integer, List<Integer>> piecesByWeakHash = new HashMap<>();
+		for (int i = 0; i < weakHashes.length; i++) {
+			if (pieceLength(i) == chunkSize) {
+				piecesByWeakHash.computeIfAbsent(weakHashes[i], k -> new ArrayList<>()).add(i);
+			}
+		}
+
+		long oldSize = oldFile.length();
+		if (!piecesByWeakHash.isEmpty() && oldSize >= chunkSize) {
+			try (InputStream is = new BufferedInputStream(new FileInputStream(oldFile), 1 << 16)) {
+				// Ring buffer holding the current window of chunkSize bytes
+				byte[] window = new byte[chunkSize];
+				new DataInputStream(is).readFully(window);
+				int start = 0;
+				int a = 0, b = 0;
+				for (int i = 0; i < chunkSize; i++) {
+					a += window[i] & 0xFF;
+					b += (chunkSize - i) * (window[i] & 0xFF);
+				}
+
+				while (true) {
+					List<Integer> candidates = piecesByWeakHash.get((a & 0xFFFF) | (b << 16));
+					boolean matched = false;
+					if (candidates != null) {
+						digest.update(window, start, chunkSize - start);
+						digest.update(window, 0, start);
+						byte[] strong = digest.digest();
+						for (int pieceIdx : candidates) {
+							if (!found[pieceIdx] && Arrays.equals(strong, strongHashes[pieceIdx])) {
+								byte[] data = new byte[chunkSize];
+								System.arraycopy(window, start, data, 0, chunkSize - start);
+								System.arraycopy(window, 0, data, chunkSize - start, start);
+								sink.accept(pieceIdx, data);
+								found[pieceIdx] = true;
+								foundCount++;
+								matched = true;
+							}
+						}
+					}
+
+					if (matched) {
+						// Content after a match most likely continues in the next aligned window, so jump over it
+						int read = readWindow(is, window);
+						if (read < chunkSize) {
+							break;
+						}
+						start = 0;
+						a = 0;
+						b = 0;
+						for (int i = 0; i < chunkSize; i++) {
+							a += window[i] & 0xFF;
+							b += (chunkSize - i) * (window[i] & 0xFF);
+						}
+						continue;
+					}
+
+					// Roll the window forward by one byte
+					int next = is.read();
+					if (next < 0) {
+						break;
+					}
+					int out = window[start] & 0xFF;
+					window[start] = (byte) next;
+					start = (start + 1) % chunkSize;
+					a += next - out;
+					b += a - chunkSize * out;
+				}
+			}
+		}
+
+		// The last piece may be shorter than a chunk; look for it at its own offset and at the end of the old file
+		int last = weakHashes.length - 1;
+		if (last >= 0 && !found[last]) {
+			int length = pieceLength(last);
+			try (RandomAccessFile raf = new RandomAccessFile(oldFile, "r")) {
+				for (long offset : new long[] { (long) last * chunkSize, oldSize - length }) {
+					if (offset >= 0 && offset + length <= oldSize) {
+						byte[] data = new byte[length];
+						raf.seek(offset);
+						raf.readFully(data);
+						if (Arrays.equals(digest.digest(data), strongHashes[last])) {
+							sink.accept(last, data);
+							foundCount++;
+							break;
+						}
+					}
+				}
+			}
+		}
+		return foundCount;
+	}
+
+
+	// Length of a data piece; only the last piece can be shorter than the chunk size.
+	private int pieceLength(int pieceIdx) {
+		return (int) Math.min(chunkSize, fileSize - (long) pieceIdx * chunkSize);
+	}
+
+
+	// Fills the window from the stream and returns the number of bytes read.
+	private static int readWindow(InputStream is, byte[] window) throws IOException {
+		int total = 0;
+		while (total < window.length) {
+			int read = is.read(window, total, window.length - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+
+	// rsync-style checksum: the low half sums the bytes, the high half weights them by distance from the end.
+	private static int weakHash(byte[] data, int offset, int length) {
+		int a = 0, b = 0;
+		for (int i = 0; i < length; i++) {
+			a += data[offset + i] & 0xFF;
+			b += (length - i) * (data[offset + i] & 0xFF);
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+
+	// Creates the digest used for piece hashes.
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
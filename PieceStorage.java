@@ -0,0 +1,73 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Where a peer keeps the pieces of the shared file while it downloads and serves them.
+ * Data pieces are addressed by their index in the file; in erasure-coded mode the parity pieces
+ * follow them, starting at the number of data chunks.
+ */
+public interface PieceStorage extends Closeable {
+
+	/**
+	 * Reads a stored piece.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return The data of the piece.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	byte[] readPiece(int pieceIdx) throws IOException;
+
+	/**
+	 * Reads a stored piece into a buffer. Backends that can hand out the stored bytes directly
+	 * return a view of them instead of a copy.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return A buffer positioned at the start of the piece, limited to its length.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	default ByteBuffer readPieceBuffer(int pieceIdx) throws IOException {
+		return ByteBuffer.wrap(readPiece(pieceIdx));
+	}
+
+
+	/**
+	 * Stores a piece.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @param data The data of the piece.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	void writePiece(int pieceIdx, byte[] data) throws IOException;
+
+	/**
+	 * Stores a run of adjacent pieces. Backends that can write the run with one call override this.
+	 *
+	 * @param firstPieceIdx The index of the first piece of the run.
+	 * @param pieces The data of the pieces, in index order.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	default void writePieces(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		for (int i = 0; i < pieces.size(); i++) {
+			writePiece(firstPieceIdx + i, pieces.get(i));
+		}
+	}
+
+
+	/**
+	 * Flushes written pieces to the device. Backends whose writes are already durable do nothing.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 */
+	default void sync() throws IOException {
+	}
+
+
+	/**
+	 * Makes the complete file available in the peer's directory once every data piece is stored.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 */
+	void finish() throws IOException;
+}
@@ -0,0 +1,420 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory of pieces shared by every peer on the host ("PieceStore directory" in Common.cfg),
+ * so a piece that one peer has downloaded is taken from disk by the others instead of crossing
+ * the loopback interface again. Wraps a downloading peer's storage and publishes every written
+ * data piece that matches the verified manifest of the file, by appending a record to the store's
+ * "index" file: the SHA-256 digest of the piece and where its data is. A piece written into the
+ * peer's final file is published where it is, without a copy; a chunk file is hard-linked into the
+ * store, named by its digest, since the peer deletes it once the file is combined, and a peer with
+ * chunk files links such a piece instead of writing it. Peers read the index incrementally and
+ * check every piece against its digest, so an entry whose data has changed since is skipped.
+ * Every open store holds a lease file naming its process; the last peer to close the store, with
+ * no other process alive holding a lease, removes its contents. Nothing is published or found
+ * until the manifest of the version being shared is known.
+ */
+public class PieceStore implements PieceStorage {
+
+	// Serializes access to the store's lock file within this process; the file lock covers other processes
+	private static final Object STORE_LOCK = new Object();
+
+	private final PieceStorage storage;  // The storage whose writes are published
+	private final File dataFile;  // The final file the storage writes pieces into in place, or null
+	private final File directory;  // The store, shared by the peers of the host
+	private final File indexFile;  // Records of the published pieces, appended to by every peer
+	private final File lease;  // This storage's lease on the store
+	private final CommonConfigClass configFile;  // Gives the number of data pieces and their sizes
+
+	private volatile PieceManifest manifest = null;  // Verified digests of the data pieces, once known
+	private final PieceBitfield published;  // Data pieces this peer has published, to publish each once
+	private Map<String, List<Integer>> piecesByDigest;  // Data pieces of the file by hex digest; guarded by this
+	private final Map<Integer, Location> locations = new LinkedHashMap<>();  // Pieces found in the index and not taken yet; guarded by this
+	private long indexPosition = 0;  // Bytes of the index read so far; guarded by this
+
+
+	// Where the data of a piece is: a byte range of a file.
+	private static class Location {
+		final File file;
+		final long offset;
+		final int length;
+
+		Location(File file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+
+	/**
+	 * Wraps a storage and takes a lease on the store, creating the store directory if needed.
+	 *
+	 * @param storage The storage whose writes are published.
+	 * @param dataFile The final file the storage writes data pieces into at their offsets, or null if it does not.
+	 * @param directory The store directory.
+	 * @param configFile The configuration file containing file details.
+	 * @throws IOException If the store directory or the lease cannot be created.
+	 */
+	public PieceStore(PieceStorage storage, File dataFile, File directory, CommonConfigClass configFile) throws IOException {
+		this.storage = storage;
+		this.dataFile = dataFile;
+		this.directory = directory;
+		this.indexFile = new File(directory, "index");
+		this.configFile = configFile;
+		this.published = new PieceBitfield(configFile.getNumberOfChunks());
+		File leases = new File(directory, "leases");
+		synchronized (STORE_LOCK) {
+			try (FileChannel lockFile = openLockFile()) {
+				lockFile.lock();
+				Files.createDirectories(leases.toPath());
+				lease = Files.createTempFile(leases.toPath(), ProcessHandle.current().pid() + "-", ".lease").toFile();
+			}
+		}
+	}
+
+
+	/**
+	 * Starts publishing and finding pieces with the manifest of the version being shared, and
+	 * publishes the data pieces already stored.
+	 *
+	 * @param verified The manifest whose root hash a neighbor announced.
+	 * @param storedPieces The pieces stored so far.
+	 */
+	public void useManifest(PieceManifest verified, PieceBitfield storedPieces) {
+		Map<String, List<Integer>> byDigest = new HashMap<>();
+		for (int pieceIdx = 0; pieceIdx < configFile.getNumberOfChunks(); pieceIdx++) {
+			byDigest.computeIfAbsent(hex(verified.getPieceHash(pieceIdx)), k -> new ArrayList<>()).add(pieceIdx);
+		}
+		synchronized (this) {
+			piecesByDigest = byDigest;
+		}
+		manifest = verified;
+		for (int pieceIdx = storedPieces.nextSetBit(0); pieceIdx >= 0 && pieceIdx < configFile.getNumberOfChunks(); pieceIdx = storedPieces.nextSetBit(pieceIdx + 1)) {
+			try {
+				publish(pieceIdx, storage.readPieceBuffer(pieceIdx));
+			} catch (IOException e) {
+				// The piece is simply not shared
+			}
+		}
+	}
+
+
+	// Returns the verified manifest, or null while it is not known.
+	public PieceManifest getManifest() {
+		return manifest;
+	}
+
+
+	/**
+	 * Reads the records appended to the index since the last call and returns every data piece of
+	 * the file found in the store and not taken yet. Only the new part of the index is read, so
+	 * polling an unchanged store costs one file size check.
+	 *
+	 * @return The indices of the pieces found, in the order they were published.
+	 * @throws IOException If the index cannot be read.
+	 */
+	public synchronized List<Integer> locatePieces() throws IOException {
+		if (piecesByDigest == null) {
+			return new ArrayList<>();
+		}
+		long indexSize = indexFile.length();
+		if (indexSize > indexPosition) {
+			ByteBuffer records = ByteBuffer.allocate((int) Math.min(indexSize - indexPosition, 1 << 20));
+			try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+				while (records.hasRemaining() && channel.read(records, indexPosition + records.position()) > 0) {
+					// Keep reading until the buffer is full or the end of the index
+				}
+			}
+			records.flip();
+			// A record still being appended is read on the next call
+			while (records.remaining() >= 2 && records.remaining() >= 2 + records.getShort(records.position())) {
+				int recordLength = records.getShort();
+				int end = records.position() + recordLength;
+				byte[] digest = new byte[32];
+				records.get(digest);
+				long offset = records.getLong();
+				int length = records.getInt();
+				byte[] path = new byte[end - records.position()];
+				records.get(path);
+				indexPosition += 2 + recordLength;
+				List<Integer> pieces = piecesByDigest.get(hex(digest));
+				if (pieces != null) {
+					for (int pieceIdx : pieces) {
+						locations.putIfAbsent(pieceIdx, new Location(new File(new String(path, StandardCharsets.UTF_8)), offset, length));
+					}
+				}
+			}
+		}
+		return new ArrayList<>(locations.keySet());
+	}
+
+
+	/**
+	 * Reads a data piece found in the store.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return The verified data of the piece, or null if its entry is gone or no longer holds the piece.
+	 */
+	public byte[] readStoredPiece(int pieceIdx) {
+		Location location;
+		synchronized (this) {
+			location = locations.get(pieceIdx);
+		}
+		PieceManifest known = manifest;
+		if (location == null || known == null) {
+			return null;
+		}
+		byte[] data = new byte[location.length];
+		try (RandomAccessFile file = new RandomAccessFile(location.file, "r")) {
+			file.seek(location.offset);
+			file.readFully(data);
+		} catch (IOException e) {
+			data = null;
+		}
+		// A changed or removed entry is skipped; the piece is downloaded instead
+		if (data == null || !known.isPieceIntact(pieceIdx, ByteBuffer.wrap(data))) {
+			forgetPiece(pieceIdx);
+			return null;
+		}
+		return data;
+	}
+
+
+	/**
+	 * Stops offering a piece found in the store, once it is taken or no longer needed.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 */
+	public synchronized void forgetPiece(int pieceIdx) {
+		locations.remove(pieceIdx);
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		return storage.readPiece(pieceIdx);
+	}
+
+
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) throws IOException {
+		return storage.readPieceBuffer(pieceIdx);
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		if (!linkFromStore(pieceIdx)) {
+			storage.writePiece(pieceIdx, data);
+		}
+		publish(pieceIdx, ByteBuffer.wrap(data));
+	}
+
+
+	@Override
+	public void writePieces(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		if (storage instanceof ChunkFileStorage) {
+			for (int i = 0; i < pieces.size(); i++) {
+				writePiece(firstPieceIdx + i, pieces.get(i));
+			}
+			return;
+		}
+		storage.writePieces(firstPieceIdx, pieces);
+		for (int i = 0; i < pieces.size(); i++) {
+			publish(firstPieceIdx + i, ByteBuffer.wrap(pieces.get(i)));
+		}
+	}
+
+
+	// Links a piece taken from the store as a chunk file instead of writing its data again; false if it cannot be linked.
+	private boolean linkFromStore(int pieceIdx) {
+		if (!(storage instanceof ChunkFileStorage)) {
+			return false;
+		}
+		Location location;
+		synchronized (this) {
+			location = locations.get(pieceIdx);
+		}
+		// Only a whole file in the store is never rewritten, so only such an entry can be shared
+		File shard = (location == null) ? null : location.file.getParentFile();
+		if (location == null || location.offset != 0 || shard == null || !directory.getAbsoluteFile().equals(shard.getParentFile())) {
+			return false;
+		}
+		File chunkFile = ((ChunkFileStorage) storage).chunkFile(pieceIdx);
+		try {
+			Files.deleteIfExists(chunkFile.toPath());
+			Files.createLink(chunkFile.toPath(), location.file.toPath());
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+
+	// Records a stored data piece in the index if it matches the manifest and was not published yet; failures only cost sharing.
+	private void publish(int pieceIdx, ByteBuffer data) {
+		PieceManifest known = manifest;
+		if (known == null || pieceIdx >= configFile.getNumberOfChunks() || published.get(pieceIdx) || !known.isPieceIntact(pieceIdx, data)) {
+			return;
+		}
+		if (!published.set(pieceIdx)) {
+			return;
+		}
+		byte[] digest = known.getPieceHash(pieceIdx);
+		try {
+			File pieceFile;
+			long offset;
+			if (dataFile != null) {
+				pieceFile = dataFile;
+				offset = (long) pieceIdx * configFile.getChunkSize();
+			} else if (storage instanceof ChunkFileStorage) {
+				pieceFile = fileOf(digest);
+				offset = 0;
+				Files.createDirectories(pieceFile.getParentFile().toPath());
+				try {
+					Files.createLink(pieceFile.toPath(), ((ChunkFileStorage) storage).chunkFile(pieceIdx).toPath());
+				} catch (FileAlreadyExistsException e) {
+					return;  // Another peer published the piece first
+				}
+			} else {
+				return;
+			}
+			appendRecord(digest, pieceFile.getAbsoluteFile(), offset, data.remaining());
+		} catch (IOException | UnsupportedOperationException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	// Appends one record to the index in a single write, under the store lock.
+	private void appendRecord(byte[] digest, File file, long offset, int length) throws IOException {
+		byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream os = new DataOutputStream(record);
+		os.writeShort(32 + 8 + 4 + path.length);
+		os.write(digest);
+		os.writeLong(offset);
+		os.writeInt(length);
+		os.write(path);
+		synchronized (STORE_LOCK) {
+			try (FileChannel lockFile = openLockFile();
+					FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				lockFile.lock();
+				ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+				while (buffer.hasRemaining()) {
+					index.write(buffer);
+				}
+			}
+		}
+	}
+
+
+	// Opens the file that locks the store against other processes; the caller holds STORE_LOCK, locks
+	// the returned channel and closes it to release the lock.
+	private FileChannel openLockFile() throws IOException {
+		Files.createDirectories(directory.toPath());
+		return FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+
+	// Returns the store file of a digest, spread over subdirectories by its first byte.
+	private File fileOf(byte[] hash) {
+		String name = hex(hash);
+		return new File(new File(directory, name.substring(0, 2)), name);
+	}
+
+
+	// Returns a digest as lowercase hex.
+	private static String hex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+
+	@Override
+	public void sync() throws IOException {
+		storage.sync();
+	}
+
+
+	@Override
+	public void finish() throws IOException {
+		storage.finish();
+	}
+
+
+	/**
+	 * Closes the storage and gives up the lease. The last peer out removes the store's contents,
+	 * ignoring the leases of processes that are no longer running.
+	 */
+	@Override
+	public void close() throws IOException {
+		storage.close();
+		synchronized (STORE_LOCK) {
+			try (FileChannel lockFile = openLockFile()) {
+				lockFile.lock();
+				lease.delete();
+				File[] leases = new File(directory, "leases").listFiles();
+				if (leases != null) {
+					for (File other : leases) {
+						if (isHeldByLiveProcess(other)) {
+							return;
+						}
+					}
+				}
+				File[] entries = directory.listFiles();
+				if (entries != null) {
+					for (File entry : entries) {
+						if (!entry.getName().equals("lock")) {
+							deleteRecursively(entry);
+						}
+					}
+				}
+			}
+		}
+	}
+
+
+	// Whether a lease was taken by a process that is still running.
+	private static boolean isHeldByLiveProcess(File lease) {
+		String name = lease.getName();
+		int dash = name.indexOf('-');
+		try {
+			long pid = Long.parseLong(name.substring(0, Math.max(0, dash)));
+			return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+
+	// Deletes a file or a directory with everything in it.
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
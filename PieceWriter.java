@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes received pieces to the storage on a dedicated thread, so disk latency never stalls the
+ * network reader threads. Reader threads hand pieces over through a bounded queue and only block
+ * when the disk falls that far behind. The writer takes whatever has queued up, writes runs of
+ * adjacent pieces together, and syncs the storage after a number of pieces or an amount of time.
+ * Each piece's callback runs once its data can be read back from the storage.
+ */
+public class PieceWriter implements Runnable {
+
+	/**
+	 * Told whether a piece handed to the writer was stored.
+	 */
+	public interface WriteCallback {
+		void done(boolean written);
+	}
+
+	// A piece waiting to be written.
+	private static class PendingWrite {
+		final int pieceIdx;
+		final byte[] data;
+		final WriteCallback callback;
+
+		PendingWrite(int pieceIdx, byte[] data, WriteCallback callback) {
+			this.pieceIdx = pieceIdx;
+			this.data = data;
+			this.callback = callback;
+		}
+	}
+
+	// Queue entry that tells the writer thread to stop once everything before it is written
+	private static final PendingWrite STOP = new PendingWrite(-1, null, null);
+
+	private final PieceStorage storage;  // Where the pieces are written
+	private final BlockingQueue<PendingWrite> queue;  // Pieces handed over by the reader threads
+	private final int syncEveryPieces;  // Pieces written between syncs, 0 to sync on time only
+	private final long syncIntervalNanos;  // Longest time written data may stay unsynced, 0 to sync on count only
+	private final Thread thread;  // The writer thread
+
+	private int unsyncedPieces = 0;  // Pieces written since the last sync
+	private long lastSync = System.nanoTime();  // When the storage was last synced
+	private volatile long syncs = 0;  // Number of syncs done
+	private volatile long coalescedWrites = 0;  // Pieces written together with the piece before them
+
+
+	/**
+	 * Creates the writer and starts its thread.
+	 *
+	 * @param storage The storage the pieces are written to.
+	 * @param queueCapacity The number of pieces that may wait to be written.
+	 * @param syncEveryPieces The number of pieces between syncs, or 0.
+	 * @param syncIntervalMillis The longest time between syncs while data is unsynced, or 0.
+	 */
+	public PieceWriter(PieceStorage storage, int queueCapacity, int syncEveryPieces, long syncIntervalMillis) {
+		this.storage = storage;
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+		this.syncEveryPieces = Math.max(0, syncEveryPieces);
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, syncIntervalMillis));
+		thread = new Thread(this, "Disk writer thread");
+		thread.start();
+	}
+
+
+	/**
+	 * Hands a piece over for writing, waiting while the queue is full.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @param data The data of the piece; it must not be changed afterwards.
+	 * @param callback Called on the writer thread once the piece is stored or the write failed.
+	 * @throws InterruptedException If interrupted while waiting for room in the queue.
+	 */
+	public void submit(int pieceIdx, byte[] data, WriteCallback callback) throws InterruptedException {
+		queue.put(new PendingWrite(pieceIdx, data, callback));
+	}
+
+
+	/**
+	 * Hands a piece over for writing unless the queue is full.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @param data The data of the piece; it must not be changed afterwards.
+	 * @param callback Called on the writer thread once the piece is stored or the write failed.
+	 * @return True if the piece was queued.
+	 */
+	public boolean trySubmit(int pieceIdx, byte[] data, WriteCallback callback) {
+		return queue.offer(new PendingWrite(pieceIdx, data, callback));
+	}
+
+
+	/**
+	 * Writes everything still queued, syncs the storage and stops the writer thread.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the writer.
+	 */
+	public void close() throws InterruptedException {
+		queue.put(STOP);
+		thread.join();
+	}
+
+
+	public long getSyncs() {
+		return syncs;
+	}
+
+	public long getCoalescedWrites() {
+		return coalescedWrites;
+	}
+
+
+	@Override
+	public void run() {
+		List<PendingWrite> batch = new ArrayList<>();
+		boolean stopping = false;
+		try {
+			while (!stopping) {
+				PendingWrite first = (unsyncedPieces > 0 && syncIntervalNanos > 0)
+						? queue.poll(Math.max(0, lastSync + syncIntervalNanos - System.nanoTime()), TimeUnit.NANOSECONDS)
+						: queue.take();
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch);
+					stopping = batch.remove(STOP);
+					writeBatch(batch);
+					batch.clear();
+				}
+				if (stopping || isSyncDue()) {
+					sync();
+				}
+			}
+		} catch (InterruptedException ie) {
+			// Stopped without draining; the process is going down
+		}
+	}
+
+
+	// Writes a batch sorted by piece index, so adjacent pieces are written with one call.
+	private void writeBatch(List<PendingWrite> batch) {
+		batch.sort(Comparator.comparingInt(write -> write.pieceIdx));
+		int start = 0;
+		while (start < batch.size()) {
+			int end = start + 1;
+			while (end < batch.size() && batch.get(end).pieceIdx == batch.get(end - 1).pieceIdx + 1) {
+				end++;
+			}
+			List<PendingWrite> run = batch.subList(start, end);
+			List<byte[]> pieces = new ArrayList<>(run.size());
+			for (PendingWrite write : run) {
+				pieces.add(write.data);
+			}
+
+			boolean written;
+			try {
+				storage.writePieces(run.get(0).pieceIdx, pieces);
+				written = true;
+				unsyncedPieces += run.size();
+				coalescedWrites += run.size() - 1;
+			} catch (IOException | RuntimeException e) {
+				// A failing storage must not end the writer thread, or submit() would block forever
+				e.printStackTrace();
+				written = false;
+			}
+			for (PendingWrite write : run) {
+				try {
+					write.callback.done(written);
+				} catch (RuntimeException e) {
+					// A failing callback must not end the writer thread or keep the other pieces from their callbacks
+					e.printStackTrace();
+				}
+			}
+			start = end;
+		}
+	}
+
+
+	// Checks whether the unsynced data has reached the piece count or age limit.
+	private boolean isSyncDue() {
+		if (unsyncedPieces == 0) {
+			return false;
+		}
+		return (syncEveryPieces > 0 && unsyncedPieces >= syncEveryPieces)
+				|| (syncIntervalNanos > 0 && System.nanoTime() - lastSync >= syncIntervalNanos);
+	}
+
+
+	// Flushes the written pieces to the device.
+	private void sync() {
+		try {
+			storage.sync();
+			syncs++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		unsyncedPieces = 0;
+		lastSync = System.nanoTime();
+	}
+}
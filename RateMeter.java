@@ -0,0 +1,72 @@
+/**
+ * Measures the byte rate of one direction of a connection over a sliding window.
+ * The window is split into one-second buckets; buckets that fall out of the window are
+ * cleared as time moves on, so the rate only reflects recent traffic.
+ */
+public class RateMeter {
+
+	private final long[] buckets;  // Bytes counted in each second of the window
+	private long currentSecond;  // Second that the newest bucket belongs to
+	private long totalBytes = 0;  // Bytes counted since the meter was created
+
+
+	/**
+	 * Creates a meter with the given window.
+	 *
+	 * @param windowSeconds The number of seconds the rate is averaged over.
+	 */
+	public RateMeter(int windowSeconds) {
+		buckets = new long[Math.max(1, windowSeconds)];
+		currentSecond = System.nanoTime() / 1_000_000_000L;
+	}
+
+
+	/**
+	 * Counts bytes transferred now.
+	 *
+	 * @param bytes The number of bytes transferred.
+	 */
+	public synchronized void record(long bytes) {
+		roll();
+		buckets[(int) (currentSecond % buckets.length)] += bytes;
+		totalBytes += bytes;
+	}
+
+
+	/**
+	 * Returns the average rate over the window.
+	 *
+	 * @return The rate in bytes per second.
+	 */
+	public synchronized long getRate() {
+		roll();
+		long sum = 0;
+		for (long bucket : buckets) {
+			sum += bucket;
+		}
+		return sum / buckets.length;
+	}
+
+
+	/**
+	 * Returns the bytes counted since the meter was created.
+	 *
+	 * @return The total number of bytes.
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+
+	/**
+	 * Advances the window to the current second, clearing the buckets that fell out of it.
+	 */
+	public synchronized void roll() {
+		long now = System.nanoTime() / 1_000_000_000L;
+		long elapsed = Math.min(now - currentSecond, buckets.length);
+		for (long i = 1; i <= elapsed; i++) {
+			buckets[(int) ((currentSecond + i) % buckets.length)] = 0;
+		}
+		currentSecond = now;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Decides how long a peer keeps serving others once it has the complete file.
+ * Configured in Common.cfg with one of:
+ * <ul>
+ *   <li>"SeedingPolicy all-complete" - stop once every peer in PeerInfo.cfg has the file (the default)</li>
+ *   <li>"SeedingPolicy duration &lt;seconds&gt;" - keep seeding for the given time after completing</li>
+ *   <li>"SeedingPolicy ratio &lt;r&gt;" - stop after uploading r times the file size, or once nobody is left to serve</li>
+ * </ul>
+ */
+public class SeedingPolicy {
+
+	/**
+	 * The supported kinds of seeding policy.
+	 */
+	public static enum Kind {
+		ALL_COMPLETE, DURATION, RATIO
+	}
+
+	private final Kind kind;  // Which condition ends seeding
+	private final double value;  // Seconds for DURATION, upload ratio for RATIO, unused otherwise
+
+
+	private SeedingPolicy(Kind kind, double value) {
+		this.kind = kind;
+		this.value = value;
+	}
+
+
+	/**
+	 * Reads the seeding policy from the configuration.
+	 *
+	 * @param configFile The configuration file.
+	 * @return The configured policy, or the all-complete policy if none is set.
+	 * @throws IllegalArgumentException If the setting cannot be parsed, or a duration or ratio is
+	 *         missing, negative or not a finite number.
+	 */
+	public static SeedingPolicy fromConfig(CommonConfigClass configFile) {
+		String setting = configFile.getOptionalSetting("SeedingPolicy", "all-complete").trim();
+		String[] parts = setting.split("\\s+");
+		switch (parts[0]) {
+			case "all-complete":
+				return new SeedingPolicy(Kind.ALL_COMPLETE, 0);
+			case "duration":
+				return new SeedingPolicy(Kind.DURATION, parseValue(setting, parts));
+			case "ratio":
+				return new SeedingPolicy(Kind.RATIO, parseValue(setting, parts));
+			default:
+				throw new IllegalArgumentException("Unknown SeedingPolicy: " + parts[0]);
+		}
+	}
+
+
+	// Reads the one non-negative number a duration or ratio policy takes.
+	private static double parseValue(String setting, String[] parts) {
+		if (parts.length != 2) {
+			throw new IllegalArgumentException("SeedingPolicy " + parts[0] + " takes exactly one number: SeedingPolicy " + setting);
+		}
+		double value;
+		try {
+			value = Double.parseDouble(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number in SeedingPolicy " + setting, e);
+		}
+		if (!(value >= 0) || Double.isInfinite(value)) {
+			throw new IllegalArgumentException("SeedingPolicy " + parts[0] + " must be a finite number of at least 0: SeedingPolicy " + setting);
+		}
+		return value;
+	}
+
+
+	public Kind getKind() {
+		return kind;
+	}
+
+
+	/**
+	 * Checks whether the peer may stop seeding.
+	 *
+	 * @param selfComplete Whether this peer has the complete file.
+	 * @param secondsSinceComplete Seconds since this peer completed, 0 if it has not.
+	 * @param uploadedBytes Bytes this peer has uploaded so far.
+	 * @param fileSize The size of the shared file.
+	 * @param swarmComplete Whether every peer is known to have the complete file.
+	 * @return True if the peer should shut down.
+	 */
+	public boolean isSeedingDone(boolean selfComplete, long secondsSinceComplete, long uploadedBytes,
+								 long fileSize, boolean swarmComplete) {
+		if (!selfComplete) {
+			return false;
+		}
+		switch (kind) {
+			case DURATION:
+				return secondsSinceComplete >= value;
+			case RATIO:
+				return swarmComplete || uploadedBytes >= value * fileSize;
+			default:
+				return swarmComplete;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Writes pieces straight into the final file, preallocated once to its full size, with positional I/O
+ * on a single open channel. Piece i lives at offset i * chunkSize, so the file is complete as soon as its
+ * last piece is written and no merge step is needed. Parity pieces of an erasure-coded download go to a
+ * sidecar file ("FileName.parity") that is removed when the storage is closed.
+ */
+public class SingleFileStorage implements PieceStorage {
+
+	private final CommonConfigClass configFile;  // Gives file size, chunk size and the number of chunks
+	private final RandomAccessFile dataFile;  // The final file, kept open for the whole run
+	private final FileChannel dataChannel;  // Channel used for positional reads and writes of data pieces
+	private final File parityPath;  // Sidecar file for parity pieces, or null without erasure coding
+	private final RandomAccessFile parityFile;  // Open sidecar file, or null
+	private final FileChannel parityChannel;  // Channel over the sidecar file, or null
+
+
+	/**
+	 * Opens the storage, creating and preallocating the file if it does not have the expected size.
+	 * Data already in the file is kept, so a complete file can be served as is.
+	 *
+	 * @param peerDirectory The peer's directory.
+	 * @param configFile The configuration file containing file details.
+	 * @throws IOException If the file cannot be opened or preallocated.
+	 */
+	public SingleFileStorage(File peerDirectory, CommonConfigClass configFile) throws IOException {
+		this.configFile = configFile;
+		dataFile = new RandomAccessFile(new File(peerDirectory, configFile.getFile()), "rw");
+		if (dataFile.length() != configFile.getFileSize()) {
+			dataFile.setLength(configFile.getFileSize());
+		}
+		dataChannel = dataFile.getChannel();
+
+		if (configFile.isErasureCoded()) {
+			parityPath = new File(peerDirectory, configFile.getFile() + ".parity");
+			parityFile = new RandomAccessFile(parityPath, "rw");
+			parityFile.setLength((long) configFile.getNumberOfStripes() * configFile.getErasureParityPieces() * configFile.getChunkSize());
+			parityChannel = parityFile.getChannel();
+		} else {
+			parityPath = null;
+			parityFile = null;
+			parityChannel = null;
+		}
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		byte[] data = new byte[pieceLength(pieceIdx)];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		FileChannel channel = channelOf(pieceIdx);
+		long position = offsetOf(pieceIdx);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Piece " + pieceIdx + " lies beyond the end of the file");
+			}
+		}
+		return data;
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		FileChannel channel = channelOf(pieceIdx);
+		long position = offsetOf(pieceIdx);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+
+	/**
+	 * Writes a run of adjacent data pieces with a single gathering write. Only the writer thread moves
+	 * the channel position; every other access is positional and does not depend on it.
+	 */
+	@Override
+	public void writePieces(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		if (firstPieceIdx + pieces.size() > configFile.getNumberOfChunks()) {
+			PieceStorage.super.writePieces(firstPieceIdx, pieces);
+			return;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[pieces.size()];
+		long remaining = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(pieces.get(i));
+			remaining += buffers[i].remaining();
+		}
+		synchronized (dataChannel) {
+			dataChannel.position(offsetOf(firstPieceIdx));
+			while (remaining > 0) {
+				remaining -= dataChannel.write(buffers);
+			}
+		}
+	}
+
+
+	@Override
+	public void sync() throws IOException {
+		dataChannel.force(false);
+		if (parityChannel != null) {
+			parityChannel.force(false);
+		}
+	}
+
+
+	/**
+	 * Flushes the file to the device; the pieces are already in place.
+	 *
+	 * @throws IOException If an I/O error occurs.
+	 */
+	@Override
+	public void finish() throws IOException {
+		dataChannel.force(false);
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		dataFile.close();
+		if (parityFile != null) {
+			parityFile.close();
+			parityPath.delete();
+		}
+	}
+
+
+	// Returns the channel holding the piece: the data file or the parity sidecar.
+	private FileChannel channelOf(int pieceIdx) {
+		return (pieceIdx < configFile.getNumberOfChunks()) ? dataChannel : parityChannel;
+	}
+
+
+	// Returns the offset of the piece within its file.
+	private long offsetOf(int pieceIdx) {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		int indexInFile = (pieceIdx < numberOfChunks) ? pieceIdx : pieceIdx - numberOfChunks;
+		return (long) indexInFile * configFile.getChunkSize();
+	}
+
+
+	// Returns the length of the piece; only the last data piece can be shorter than the chunk size.
+	private int pieceLength(int pieceIdx) {
+		if (pieceIdx >= configFile.getNumberOfChunks()) {
+			return configFile.getChunkSize();
+		}
+		return (int) Math.min(configFile.getChunkSize(), configFile.getFileSize() - offsetOf(pieceIdx));
+	}
+}
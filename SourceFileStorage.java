@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the pieces of a seed straight from the original file at piece offsets, or from the files
+ * of a content set laid out back to back, so a peer that
+ * starts with the complete file is ready as soon as the file is open, however large it is, and
+ * needs no second copy on disk. StorageBackend "mmap" serves a single file from a read-only mapping
+ * and "memory" loads the file into memory once; any other backend reads it in place with positional
+ * I/O. Parity pieces of an erasure-coded swarm are not stored at all:
+ * they are encoded from their stripe when first requested, and the parity of the most recently
+ * used stripes is kept. Each stripe is encoded under its own lock, so uploads of different stripes
+ * encode in parallel and requests for a stripe being encoded wait for that one result.
+ */
+public class SourceFileStorage implements PieceStorage {
+
+	private final CommonConfigClass configFile;  // Gives file size, chunk size and the erasure coding parameters
+	private final ContentFiles sourceFiles;  // The original file or content set, opened read-only
+	private final PieceStorage heldPieces;  // Serves the data pieces from a mapping or memory, or null to read them in place
+
+	private final LinkedHashMap<Integer, EncodedStripe> encodedStripes;  // Parity by stripe, least recently used first; guarded by itself
+
+
+	// The parity pieces of one stripe, encoded once under the entry's own lock.
+	private static class EncodedStripe {
+		byte[][] parity = null;
+	}
+
+
+	/**
+	 * Opens the original file, or every file of the content set.
+	 *
+	 * @param directory The directory holding FileName.
+	 * @param configFile The configuration file containing file details.
+	 * @param backend The configured StorageBackend; "mmap" only applies to a single file.
+	 * @throws IOException If a file is missing or shorter than configured.
+	 */
+	public SourceFileStorage(File directory, CommonConfigClass configFile, String backend) throws IOException {
+		this.configFile = configFile;
+		int cachedStripes = configFile.getParityCacheStripes();
+		encodedStripes = new LinkedHashMap<Integer, EncodedStripe>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, EncodedStripe> eldest) {
+				return size() > cachedStripes;
+			}
+		};
+		ContentLayout layout = configFile.getContentLayout();
+		if (layout == null) {
+			sourceFiles = new ContentFiles(ContentLayout.singleFile(configFile.getFile(), configFile.getFileSize()), directory, false);
+		} else {
+			sourceFiles = new ContentFiles(layout, new File(directory, configFile.getFile()), false);
+		}
+		if (backend.equals("mmap") && layout == null) {
+			heldPieces = MappedFileStorage.openReadOnly(directory, configFile, configFile.getMappedReadAhead());
+		} else if (backend.equals("memory")) {
+			MemoryStorage memory = new MemoryStorage(directory, configFile);
+			memory.readFrom(sourceFiles);
+			heldPieces = memory;
+		} else {
+			heldPieces = null;
+		}
+	}
+
+
+	// Whether the data pieces are served from a mapping or memory, so a piece cache would only duplicate them.
+	public boolean isServedFromMemory() {
+		return heldPieces != null;
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		if (pieceIdx >= numberOfChunks) {
+			int parityPieces = configFile.getErasureParityPieces();
+			int stripe = (pieceIdx - numberOfChunks) / parityPieces;
+			return parityOf(stripe)[(pieceIdx - numberOfChunks) % parityPieces].clone();
+		}
+		if (heldPieces != null) {
+			return heldPieces.readPiece(pieceIdx);
+		}
+
+		long position = (long) pieceIdx * configFile.getChunkSize();
+		byte[] data = new byte[(int) Math.min(configFile.getChunkSize(), configFile.getFileSize() - position)];
+		sourceFiles.read(position, ByteBuffer.wrap(data));
+		return data;
+	}
+
+
+	/**
+	 * Returns a data piece as a read-only view of the mapping or memory when the file is held there,
+	 * without copying it.
+	 */
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) throws IOException {
+		if (heldPieces != null && pieceIdx < configFile.getNumberOfChunks()) {
+			return heldPieces.readPieceBuffer(pieceIdx);
+		}
+		return ByteBuffer.wrap(readPiece(pieceIdx));
+	}
+
+
+	// Returns the parity pieces of a stripe, encoding them from its data pieces unless they are cached.
+	private byte[][] parityOf(int stripe) throws IOException {
+		EncodedStripe entry;
+		synchronized (encodedStripes) {
+			entry = encodedStripes.computeIfAbsent(stripe, s -> new EncodedStripe());
+		}
+		// An entry evicted while it is encoded still serves the requests that already hold it
+		synchronized (entry) {
+			if (entry.parity == null) {
+				int dataPieces = configFile.getDataPiecesInStripe(stripe);
+				int firstDataIdx = stripe * configFile.getErasureDataPieces();
+				byte[][] data = new byte[dataPieces][];
+				for (int i = 0; i < dataPieces; i++) {
+					data[i] = readPiece(firstDataIdx + i);
+				}
+				entry.parity = new ErasureCoder(dataPieces, configFile.getErasureParityPieces()).encode(data, configFile.getChunkSize());
+			}
+			return entry.parity;
+		}
+	}
+
+
+	/**
+	 * The original file is never written; a seed has no pieces to store.
+	 *
+	 * @throws IOException Always.
+	 */
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		throw new IOException("Pieces of the original file are read-only");
+	}
+
+
+	@Override
+	public void finish() {
+		// The original file is already complete
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		if (heldPieces != null) {
+			heldPieces.close();
+		}
+		sourceFiles.close();
+	}
+}
@@ -0,0 +1,105 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the piece storage backends on the same workload: every piece written once in random order,
+ * as a download would, then random pieces read repeatedly, as a seed serving many peers would.
+ *
+ * Usage: java StorageBenchmark [fileSize] [pieceSize] [reads]
+ */
+public class StorageBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		long fileSize = (args.length > 0) ? Long.parseLong(args[0]) : 256L * 1024 * 1024;
+		int pieceSize = (args.length > 1) ? Integer.parseInt(args[1]) : 256 * 1024;
+		int reads = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+
+		CommonConfigClass configFile = CommonConfigClass.getConfigFileObject(Arrays.asList(
+				"NumberOfPreferredNeighbors 1", "UnchokingInterval 1", "OptimisticUnchokingInterval 1",
+				"FileName benchmark.dat", "FileSize " + fileSize, "PieceSize " + pieceSize));
+
+		System.out.println("File size " + fileSize + " bytes, piece size " + pieceSize + " bytes, " + reads + " reads");
+		for (String backend : new String[] { "chunk-files", "single-file", "mmap" }) {
+			File directory = Files.createTempDirectory("storage-benchmark").toFile();
+			try {
+				run(backend, directory, configFile, reads);
+			} finally {
+				for (File file : directory.listFiles()) {
+					file.delete();
+				}
+				directory.delete();
+			}
+		}
+	}
+
+
+	// Runs the workload against one backend and prints its write and read throughput.
+	private static void run(String backend, File directory, CommonConfigClass configFile, int reads) throws IOException {
+		int numberOfChunks = configFile.getNumberOfChunks();
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < numberOfChunks; i++) {
+			order.add(i);
+		}
+		Random random = new Random(42);
+		Collections.shuffle(order, random);
+		byte[] piece = new byte[configFile.getChunkSize()];
+		random.nextBytes(piece);
+
+		PieceStorage storage = open(backend, directory, configFile);
+		try {
+			long start = System.nanoTime();
+			for (int pieceIdx : order) {
+				int length = (int) Math.min(piece.length, configFile.getFileSize() - (long) pieceIdx * piece.length);
+				storage.writePiece(pieceIdx, (length == piece.length) ? piece : Arrays.copyOf(piece, length));
+			}
+			storage.finish();
+			long writeNanos = System.nanoTime() - start;
+
+			// Every piece is consumed the way an upload sends it, in slices through a small buffer
+			byte[] slice = new byte[Constants.BANDWIDTH_SLICE_SIZE];
+			long bytesRead = 0;
+			long checksum = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < reads; i++) {
+				ByteBuffer buffer = storage.readPieceBuffer(random.nextInt(numberOfChunks));
+				bytesRead += buffer.remaining();
+				while (buffer.hasRemaining()) {
+					int len = Math.min(slice.length, buffer.remaining());
+					buffer.get(slice, 0, len);
+					checksum += slice[len - 1];
+				}
+			}
+			long readNanos = System.nanoTime() - start;
+
+			System.out.printf("%-12s write %8.1f MB/s   read %8.1f MB/s   (%d)%n", backend,
+					mbPerSecond(configFile.getFileSize(), writeNanos), mbPerSecond(bytesRead, readNanos), checksum);
+		} finally {
+			storage.close();
+		}
+	}
+
+
+	// Opens a backend directly, without going through a peer's directory.
+	private static PieceStorage open(String backend, File directory, CommonConfigClass configFile) throws IOException {
+		switch (backend) {
+			case "single-file":
+				return new SingleFileStorage(directory, configFile);
+			case "mmap":
+				return new MappedFileStorage(directory, configFile);
+			default:
+				return new ChunkFileStorage(directory, configFile);
+		}
+	}
+
+
+	private static double mbPerSecond(long bytes, long nanos) {
+		return bytes / 1e6 / (nanos / 1e9);
+	}
+}
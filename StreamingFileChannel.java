@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Set;
+
+/**
+ * Read-only channel over a file that is still being downloaded.
+ * A read blocks only until the piece covering the current position has been stored,
+ * and while it waits the pieces under the read position and a read-ahead window are
+ * marked urgent so that piece selection fetches them before anything else.
+ */
+public class StreamingFileChannel implements SeekableByteChannel {
+
+	private final PeerUtil peerUtil;  // Used to read stored pieces from the peer's directory
+	private final int peerId;  // ID of the local peer whose directory holds the pieces
+	private final CommonConfigClass configFile;  // Gives file size, chunk size and read-ahead window
+	private final PieceBitfield storedPieces;  // Pieces whose data is on disk; also the monitor notified on arrival
+	private final Set<Integer> urgentPieces;  // Pieces that piece selection should request first
+
+	private long position = 0;  // Current read position in the file
+	private volatile boolean open = true;  // Whether the channel is still open
+	private int cachedPieceIdx = -1;  // Index of the piece held in cachedPiece
+	private byte[] cachedPiece = null;  // Last piece read, kept to serve small sequential reads
+
+
+	/**
+	 * Creates a streaming channel over the pieces of the shared file.
+	 *
+	 * @param peerUtil The utility used to read pieces from disk.
+	 * @param peerId The ID of the local peer.
+	 * @param configFile The configuration file containing file and chunk sizes.
+	 * @param storedPieces The bitfield of pieces already stored; notified whenever a piece is added.
+	 * @param urgentPieces The set of pieces that should be requested before any others.
+	 */
+	public StreamingFileChannel(PeerUtil peerUtil, int peerId, CommonConfigClass configFile,
+								PieceBitfield storedPieces, Set<Integer> urgentPieces) {
+		this.peerUtil = peerUtil;
+		this.peerId = peerId;
+		this.configFile = configFile;
+		this.storedPieces = storedPieces;
+		this.urgentPieces = urgentPieces;
+	}
+
+
+	/**
+	 * Wakes up every reader blocked on a missing piece. Must be called after a piece is marked as stored.
+	 *
+	 * @param storedPieces The stored-piece bitfield the readers wait on.
+	 */
+	public static void signalPieceStored(PieceBitfield storedPieces) {
+		synchronized (storedPieces) {
+			storedPieces.notifyAll();
+		}
+	}
+
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		long fileSize = configFile.getFileSize();
+		if (position >= fileSize) {
+			return -1;
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		int chunkSize = configFile.getChunkSize();
+		int pieceIdx = (int) (position / chunkSize);
+		int offsetInPiece = (int) (position % chunkSize);
+
+		// Block until the piece under the read position is stored, asking for it and the read-ahead window first
+		awaitPiece(pieceIdx);
+
+		if (cachedPieceIdx != pieceIdx) {
+			cachedPiece = peerUtil.fetchChunk(peerId, pieceIdx, configFile);
+			cachedPieceIdx = pieceIdx;
+		}
+
+		int length = Math.min(dst.remaining(), cachedPiece.length - offsetInPiece);
+		dst.put(cachedPiece, offsetInPiece, length);
+		position += length;
+		return length;
+	}
+
+
+	/**
+	 * Marks the given piece and the following read-ahead window as urgent and waits until the piece is stored.
+	 *
+	 * @param pieceIdx The index of the piece the reader needs now.
+	 * @throws IOException If the wait is interrupted or the channel is closed while waiting.
+	 */
+	private void awaitPiece(int pieceIdx) throws IOException {
+		int lastPiece = Math.min(pieceIdx + configFile.getReadAheadPieces(), configFile.getNumberOfChunks() - 1);
+		for (int i = pieceIdx; i <= lastPiece; i++) {
+			if (!storedPieces.get(i)) {
+				urgentPieces.add(i);
+			}
+		}
+
+		synchronized (storedPieces) {
+			while (!storedPieces.get(pieceIdx)) {
+				ensureOpen();
+				try {
+					storedPieces.wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for piece " + pieceIdx);
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return configFile.getFileSize();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		cachedPiece = null;
+		// Release any reader still blocked on a piece
+		signalPieceStored(storedPieces);
+	}
+
+	// Throws if the channel has been closed.
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
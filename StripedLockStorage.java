@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lets any number of threads use a piece storage at once. Pieces are guarded by a fixed set of
+ * read-write locks, each covering every n-th piece: reads of a piece share its lock and only wait
+ * for a write to a piece on the same stripe, so uploads of different pieces, and of the same piece,
+ * run in parallel. Since a piece is written once and only advertised afterwards, the write locks are
+ * almost never contended; they keep a REQUEST for a piece that is being written from seeing half of it.
+ */
+public class StripedLockStorage implements PieceStorage {
+
+	private final PieceStorage storage;  // The storage being guarded
+	private final ReadWriteLock[] stripes;  // Lock of piece i is stripes[i % stripes.length]
+
+
+	/**
+	 * Wraps a storage.
+	 *
+	 * @param storage The storage to guard; its methods must be safe to call for different pieces at once.
+	 * @param stripeCount The number of locks the pieces are spread over.
+	 */
+	public StripedLockStorage(PieceStorage storage, int stripeCount) {
+		this.storage = storage;
+		this.stripes = new ReadWriteLock[Math.max(1, stripeCount)];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+
+	// Returns the lock covering a piece.
+	private ReadWriteLock lockOf(int pieceIdx) {
+		return stripes[pieceIdx % stripes.length];
+	}
+
+
+	@Override
+	public byte[] readPiece(int pieceIdx) throws IOException {
+		ReadWriteLock lock = lockOf(pieceIdx);
+		lock.readLock().lock();
+		try {
+			return storage.readPiece(pieceIdx);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public ByteBuffer readPieceBuffer(int pieceIdx) throws IOException {
+		ReadWriteLock lock = lockOf(pieceIdx);
+		lock.readLock().lock();
+		try {
+			return storage.readPieceBuffer(pieceIdx);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+
+	@Override
+	public void writePiece(int pieceIdx, byte[] data) throws IOException {
+		ReadWriteLock lock = lockOf(pieceIdx);
+		lock.writeLock().lock();
+		try {
+			storage.writePiece(pieceIdx, data);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Writes a run of pieces holding the write locks of all their stripes, taken in ascending order
+	 * so two runs can never wait for each other.
+	 */
+	@Override
+	public void writePieces(int firstPieceIdx, List<byte[]> pieces) throws IOException {
+		TreeSet<Integer> stripeIdxs = new TreeSet<>();
+		for (int i = 0; i < pieces.size() && stripeIdxs.size() < stripes.length; i++) {
+			stripeIdxs.add((firstPieceIdx + i) % stripes.length);
+		}
+		for (int stripeIdx : stripeIdxs) {
+			stripes[stripeIdx].writeLock().lock();
+		}
+		try {
+			storage.writePieces(firstPieceIdx, pieces);
+		} finally {
+			for (int stripeIdx : stripeIdxs) {
+				stripes[stripeIdx].writeLock().unlock();
+			}
+		}
+	}
+
+
+	@Override
+	public void sync() throws IOException {
+		storage.sync();
+	}
+
+
+	@Override
+	public void finish() throws IOException {
+		storage.finish();
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		storage.close();
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket that limits the byte rate of one direction of traffic.
+ * Callers take tokens before moving bytes and wait when the bucket runs dry. A caller that overdraws
+ * the bucket leaves a debt the next callers pay off as well, so waiters are served in arrival order and
+ * connections sending in small slices share the rate fairly. The lock is only held to take the tokens,
+ * never while waiting. A rate of 0 means unlimited, and the rate can be changed at any time.
+ */
+public class TokenBucket {
+
+	private final ReentrantLock lock = new ReentrantLock();  // Guards tokens and lastRefill; never held while sleeping
+	private volatile long rate;  // Allowed bytes per second; 0 disables the limit
+	private double tokens = 0;  // Bytes that may be sent right now; negative while a caller is paying off a debt
+	private long lastRefill = System.nanoTime();  // When tokens were last added
+	private final AtomicLong throttledNanos = new AtomicLong(0);  // Total time callers spent waiting for tokens
+
+
+	/**
+	 * Creates a bucket.
+	 *
+	 * @param rate The allowed rate in bytes per second, or 0 for no limit.
+	 */
+	public TokenBucket(long rate) {
+		this.rate = Math.max(0, rate);
+		this.tokens = burstSize(this.rate);
+	}
+
+
+	/**
+	 * Takes tokens for the given number of bytes, waiting as long as the rate requires.
+	 *
+	 * @param bytes The number of bytes about to be transferred.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		if (rate == 0) {
+			return;
+		}
+		long waitNanos;
+		lock.lockInterruptibly();
+		try {
+			long currentRate = rate;
+			if (currentRate == 0) {
+				return;
+			}
+			refill(currentRate);
+			tokens -= bytes;
+			// The wait covers the debt of the callers that came first, so later callers queue behind them
+			waitNanos = (tokens < 0) ? (long) (-tokens * 1_000_000_000L / currentRate) : 0;
+		} finally {
+			lock.unlock();
+		}
+		if (waitNanos > 0) {
+			long start = System.nanoTime();
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				// The bytes will not be sent; give their tokens back
+				lock.lock();
+				try {
+					tokens += bytes;
+				} finally {
+					lock.unlock();
+				}
+				throw e;
+			} finally {
+				throttledNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+	}
+
+
+	/**
+	 * Changes the allowed rate. Takes effect for the next caller; callers already waiting keep the
+	 * wait they were given, and this never waits for them.
+	 *
+	 * @param newRate The allowed rate in bytes per second, or 0 for no limit.
+	 */
+	public void setRate(long newRate) {
+		newRate = Math.max(0, newRate);
+		if (newRate == rate) {
+			return;
+		}
+		lock.lock();
+		try {
+			refill(rate);
+			rate = newRate;
+			tokens = Math.min(tokens, burstSize(newRate));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Returns the allowed rate.
+	 *
+	 * @return The rate in bytes per second, or 0 if unlimited.
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+
+	/**
+	 * Returns the total time callers have spent waiting for tokens.
+	 *
+	 * @return The throttled time in milliseconds.
+	 */
+	public long getThrottledMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+	}
+
+
+	// Adds the tokens earned since the last refill, up to the burst size. Must be called with the lock held.
+	private void refill(long currentRate) {
+		long now = System.nanoTime();
+		if (currentRate > 0) {
+			tokens = Math.min(burstSize(currentRate), tokens + (now - lastRefill) * currentRate / 1_000_000_000.0);
+		}
+		lastRefill = now;
+	}
+
+
+	// Largest amount of tokens that can build up while idle: one second of traffic, but at least one slice.
+	private static double burstSize(long rate) {
+		return Math.max(rate, Constants.BANDWIDTH_SLICE_SIZE);
+	}
+}
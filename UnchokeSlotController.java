@@ -0,0 +1,96 @@
+/**
+ * Adjusts the number of preferred-neighbor (unchoke) slots to the measured upload capacity.
+ * The controller probes upwards one slot at a time while peers are waiting and the extra slot
+ * raises total upload throughput, and backs off when a new slot adds nothing (the uplink is
+ * saturated) or when the average slot falls below a useful rate (slots are starving).
+ */
+public class UnchokeSlotController {
+
+	// An added slot must raise total upload by this fraction to count as using spare capacity
+	private static final double MIN_GAIN = 0.05;
+
+	// Intervals to wait after backing off before probing upwards again
+	private static final int HOLD_AFTER_DECREASE = 3;
+
+	private final int minSlots;  // Lower bound on the number of slots
+	private final int maxSlots;  // Upper bound on the number of slots
+	private final long minSlotRate;  // Average per-slot upload rate below which slots are considered starving
+	private final long settleNanos;  // Time the rate meters need to reflect a change before it is judged
+
+	private int slots;  // Current number of slots
+	private int lastChange = 0;  // +1 after a probe upwards, -1 after a back-off, 0 otherwise
+	private long rateBeforeChange = 0;  // Total upload rate measured just before the last change
+	private long lastChangeTime;  // When the slot count last changed
+	private int holdIntervals = 0;  // Remaining evaluations to skip probing after a back-off
+
+
+	/**
+	 * Creates a controller.
+	 *
+	 * @param initialSlots The number of slots to start with.
+	 * @param minSlots The smallest number of slots to use.
+	 * @param maxSlots The largest number of slots to use.
+	 * @param minSlotRate The per-slot upload rate, in bytes per second, below which slots are starving.
+	 * @param settleSeconds The number of seconds the rate meters average over.
+	 */
+	public UnchokeSlotController(int initialSlots, int minSlots, int maxSlots, long minSlotRate, int settleSeconds) {
+		this.minSlots = Math.max(1, Math.min(minSlots, maxSlots));
+		this.maxSlots = Math.max(this.minSlots, maxSlots);
+		this.minSlotRate = minSlotRate;
+		this.settleNanos = settleSeconds * 1_000_000_000L;
+		this.slots = Math.max(this.minSlots, Math.min(initialSlots, this.maxSlots));
+		this.lastChangeTime = System.nanoTime();
+	}
+
+
+	/**
+	 * Returns the number of unchoke slots to use now.
+	 *
+	 * @return The current slot count.
+	 */
+	public synchronized int getSlots() {
+		return slots;
+	}
+
+
+	/**
+	 * Re-evaluates the slot count from the latest measurements. Nothing changes until the rate
+	 * meters have had time to reflect the previous change.
+	 *
+	 * @param totalUploadRate The combined upload rate to all neighbors, in bytes per second.
+	 * @param interestedPeers The number of peers that want data from us.
+	 * @return The slot count to use from now on.
+	 */
+	public synchronized int update(long totalUploadRate, int interestedPeers) {
+		long now = System.nanoTime();
+		if (now - lastChangeTime < settleNanos) {
+			return slots;
+		}
+		if (holdIntervals > 0) {
+			holdIntervals--;
+		}
+
+		long perSlotRate = totalUploadRate / slots;
+		boolean probeGainedNothing = lastChange == 1 && totalUploadRate < rateBeforeChange * (1 + MIN_GAIN);
+		boolean slotsStarving = minSlotRate > 0 && perSlotRate < minSlotRate && totalUploadRate > 0;
+
+		if ((probeGainedNothing || slotsStarving) && slots > minSlots) {
+			change(-1, totalUploadRate, now);
+			holdIntervals = HOLD_AFTER_DECREASE;
+		} else if (interestedPeers > slots && slots < maxSlots && holdIntervals == 0 && !slotsStarving) {
+			change(1, totalUploadRate, now);
+		} else {
+			lastChange = 0;
+		}
+		return slots;
+	}
+
+
+	// Applies a one-slot change and remembers the throughput it is compared against.
+	private void change(int delta, long totalUploadRate, long now) {
+		slots += delta;
+		lastChange = delta;
+		rateBeforeChange = totalUploadRate;
+		lastChangeTime = now;
+	}
+}
@@ -2,53 +2,119 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-
-
-
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One swarm of a peer process: the sharing of one file, or content set, with the peers listed in a
+ * PeerInfo.cfg. A process runs one swarm per directory given after the peer ID, or a single swarm
+ * in the working directory. The swarms share the process-wide state kept in static fields: one
+ * listening port whose connections are handed to a swarm by the content identifier in their
+ * handshake, one connection per remote peer that every swarm the two have in common uses, the
+ * upload workers, the timer thread, the memory budget and the bandwidth limits.
+ */
 public class peerProcess {
 
+	// Process-wide state, shared by every swarm
 	private static int srcPort = 0;  // Port number of the source peer
 	private static int srcPeerId = -1;  // ID of the source peer
-	private static int currPeerIdx = -1;  // Index of the current peer in some context
-	private static int totalNoOfPeers = -1;  // Total number of peers in the network
-	private static int totalNoOfChunks = 0;  // Total number of chunks of the file being shared
 	private static FileHelper fh = null;  // Helper class for file-related operations, initially null
-	private static LoggingClass log = null;  // Logging utility class instance, initially null
-	private static CommonConfigClass commCon = null;  // Common configuration class instance, initially null
 	private static ServerSocket listener = null;  // ServerSocket for listening to incoming connections, initially null
-	private static PeerUtil peerUtil = null;  // Utility class for peer-related operations, initially null
-	private static ConcurrentHashMap<Integer,Integer> mapForBitField = new ConcurrentHashMap<>();  // Map to store bitfields for each peer
-	private static Map<Integer, NeighborPeer> neighborPeers = new LinkedHashMap<>();  // Map to store information about neighbor peers
-	private static ConcurrentHashMap<Integer,NeighbrConn> neighbrConnMap = new ConcurrentHashMap<>();  // Map to store connections with neighbor peers
-	private static ConcurrentHashMap<Integer, Integer> dwnldRate = new ConcurrentHashMap<>();  // Map to store download rates of peers
-	private static CopyOnWriteArrayList<Integer> peersInterested = new CopyOnWriteArrayList<>();  // List of peers that are interested
-	private static CopyOnWriteArrayList<Integer> peersUnchoked = new CopyOnWriteArrayList<>();  // List of peers that are unchoked
-	private static CopyOnWriteArrayList<Integer> peersCompleted = new CopyOnWriteArrayList<>();  // List of peers that have completed downloading
-
-	private static AtomicInteger peersWithFullFile = new AtomicInteger(0);  // Atomic integer to count peers with the complete file
-
-	private static AtomicInteger optUnchokedPeer = new AtomicInteger(-1);  // Atomic integer to store the ID of the optimistically unchoked peer
-	private static boolean isCompleteFile;  // Flag to indicate if the current peer has the complete file
+	private static ConcurrentHashMap<Integer, peerProcess> swarms = new ConcurrentHashMap<>();  // Running swarms by content identifier
+	private static peerProcess primarySwarm = null;  // First swarm; its Common.cfg sets the process-wide limits
+	private static ScheduledExecutorService scheduler = null;  // Single timer thread running all periodic work
+	private static TokenBucket uploadBucket = new TokenBucket(0);  // Process-wide upload limit
+	private static TokenBucket downloadBucket = new TokenBucket(0);  // Process-wide download limit
+	private static LinkedBlockingQueue<NeighbrConn> uploadReadyQueue = new LinkedBlockingQueue<>();  // Neighbors with queued REQUESTs, served round-robin
+	private static ExecutorService uploadPool = null;  // Bounded pool of workers serving queued REQUESTs
+	private static MemoryGovernor memoryGovernor = null;  // Bounds the piece data held in memory across all connections
+
+	// Time a connecting peer has to send its handshake before the listener moves on
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+	// Sender recorded for pieces taken from the host's piece store
+	private static final int FROM_PIECE_STORE = -1;
+	// Sender recorded for pieces found in the copy of an older version
+	private static final int FROM_PREVIOUS_VERSION = -2;
+
+	private int contentId = 0;  // Identifies the swarm in handshakes
+	private int currPeerIdx = -1;  // Index of the current peer in some context
+	private int totalNoOfPeers = -1;  // Total number of peers in the network
+	private int totalNoOfChunks = 0;  // Total number of chunks of the file being shared
+	private LoggingClass log = null;  // Logging utility class instance, initially null
+	private CommonConfigClass commCon = null;  // Common configuration class instance, initially null
+	private PeerUtil peerUtil = null;  // Utility class for peer-related operations, initially null
+	private PieceBitfield localBitfield = null;  // Pieces whose data is stored; sent as our BITFIELD and notified on arrival
+	private Map<Integer, NeighborPeer> neighborPeers = new LinkedHashMap<>();  // Map to store information about neighbor peers
+	private ConcurrentHashMap<Integer,NeighbrConn> neighbrConnMap = new ConcurrentHashMap<>();  // Map to store connections with neighbor peers
+	private CopyOnWriteArrayList<Integer> peersInterested = new CopyOnWriteArrayList<>();  // List of peers that are interested
+	private CopyOnWriteArrayList<Integer> peersUnchoked = new CopyOnWriteArrayList<>();  // List of peers that are unchoked
+	private CopyOnWriteArrayList<Integer> peersCompleted = new CopyOnWriteArrayList<>();  // List of peers that have completed downloading
+	private Set<Integer> urgentPieces = ConcurrentHashMap.newKeySet();  // Pieces wanted by streaming readers, requested first
+	private Thread streamThread = null;  // Copies the file to StreamOutput while it downloads, or null
+	private ConcurrentHashMap<Integer, Integer> piecesInFlight = new ConcurrentHashMap<>();  // Piece index to the neighbor it was requested from
+	private AtomicIntegerArray piecesPerStripe = new AtomicIntegerArray(0);  // Pieces held in each erasure-coded stripe
+	private PieceBitfield completedFiles = new PieceBitfield(0);  // Files of a content set whose pieces are all stored
+
+	private AtomicInteger peersWithFullFile = new AtomicInteger(0);  // Atomic integer to count peers with the complete file
+
+	private AtomicInteger optUnchokedPeer = new AtomicInteger(-1);  // Atomic integer to store the ID of the optimistically unchoked peer
+	private ChokeManager chokeManager = null;  // Preferred-neighbor selection, run by the scheduler
+	private OptimisticChokeManager optimisticChokeManager = null;  // Optimistic unchoke rotation, run by the scheduler
+	private List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();  // Periodic work of this swarm on the shared scheduler
+	private AtomicBoolean chokeReevaluationPending = new AtomicBoolean(false);  // Coalesces early choke reevaluations
+	private CountDownLatch swarmCompleted = new CountDownLatch(1);  // Released once every peer has the complete file
+	private CountDownLatch seedingDone = new CountDownLatch(1);  // Released when the seeding policy lets the peer shut down
+	private SeedingPolicy seedingPolicy = null;  // Decides how long to keep serving after completing
+	private volatile long completedAtNanos = 0;  // When this peer got the complete file
+	private AtomicLong uploadedBytes = new AtomicLong(0);  // Piece bytes uploaded to all neighbors, for ratio seeding
+	private PieceWriter pieceWriter = null;  // Writes received pieces to the storage off the reader threads
+	private ExecutorService completionNotifier = null;  // Announces stored pieces and finishes the download off the disk writer
+	private ExecutorService pieceStoreTaker = null;  // Scans the host's piece store off the timer thread, or null
+	private AtomicBoolean pieceStoreScanQueued = new AtomicBoolean(false);  // Whether a scan of the piece store is waiting to run
+	private final AtomicReference<PieceManifest> verifiedManifest = new AtomicReference<>();  // Manifest of the version being shared, once known
+	private Set<Integer> piecesBeingWritten = ConcurrentHashMap.newKeySet();  // Received pieces waiting for the disk writer
+	private AtomicLong localDownloadedBytes = new AtomicLong(0);  // Piece bytes received from local neighbors
+	private AtomicLong remoteDownloadedBytes = new AtomicLong(0);  // Piece bytes received from remote neighbors
+	private volatile CommonConfigClass limitsConfig = null;  // Latest Common.cfg, whose bandwidth limits new connections get
+	private long limitsModified = 0;  // Modification time of the Common.cfg the limits were read from
+	private boolean isCompleteFile;  // Flag to indicate if the current peer has the complete file
 
 
 	// This class handles the initiation of TCP connections with peers that started earlier.
@@ -68,29 +134,55 @@ public class peerProcess {
 				int portNumber = peerObject.getPortNo();
 
 				try {
-					// Establish a TCP connection with the peer.
-					Socket socket = new Socket(hostName, portNumber);
-					DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-					DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-
-					// Send a handshake packet to the peer.
-					byte[] handshakeHeader = peerUtil.generateHandshakePacket(srcPeerId);
-					outputStream.write(handshakeHeader);
-
-					// Receive and process the handshake response.
-					byte[] receivedHandshake = new byte[handshakeHeader.length];
-					inputStream.readFully(receivedHandshake);
-					int receivedPeerId = Integer.parseInt(new String(Arrays.copyOfRange(receivedHandshake, 28, 32)));
-
-					// If the handshake is successful, establish the connection.
-					if (receivedPeerId == peerId) {
-						NeighbrConn neighborConnection = new NeighbrConn(socket, peerObject);
-						neighborConnection.initiateConnection();
-						neighbrConnMap.put(peerId, neighborConnection);
-						log.logForTcpConnectionTo(srcPeerId, peerId);
+					// One swarm at a time sets up the connection to a peer, so the other swarms find it open
+					synchronized (PeerLink.connectLock(peerId)) {
+						// Join the connection another swarm already has with the peer, if any
+						PeerLink openLink = PeerLink.find(peerId);
+						if (openLink != null) {
+							NeighbrConn neighborConnection = new NeighbrConn(openLink, peerObject);
+							if (openLink.addSession(contentId, neighborConnection)) {
+								neighbrConnMap.put(peerId, neighborConnection);
+								neighborConnection.initiateConnection();
+								log.logForTcpConnectionTo(srcPeerId, peerId);
+								idx++;
+								continue;
+							}
+						}
+
+						// Establish a TCP connection with the peer.
+						Socket socket = new Socket(hostName, portNumber);
+						DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+						DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+
+						// Send a handshake packet to the peer.
+						byte[] handshakeHeader = peerUtil.generateHandshakePacket(srcPeerId, contentId);
+						long handshakeSent = System.nanoTime();
+						outputStream.write(handshakeHeader);
+
+						// Receive and process the handshake response; its delay is the first round-trip time sample
+						byte[] receivedHandshake = new byte[handshakeHeader.length];
+						inputStream.readFully(receivedHandshake);
+						long handshakeRtt = System.nanoTime() - handshakeSent;
+						int receivedPeerId = Integer.parseInt(new String(Arrays.copyOfRange(receivedHandshake, 28, 32)));
+						int receivedContentId = PeerUtil.readContentId(receivedHandshake);
+
+						// If the handshake is successful, establish the connection.
+						if (receivedPeerId == peerId && (receivedContentId == 0 || receivedContentId == contentId)) {
+							PeerLink link = new PeerLink(socket, peerId, contentId);
+							NeighbrConn neighborConnection = new NeighbrConn(link, peerObject);
+							neighborConnection.quality.onRttSample(handshakeRtt);
+							link.addSession(contentId, neighborConnection);
+							neighbrConnMap.put(peerId, neighborConnection);
+							link.start();
+							neighborConnection.initiateConnection();
+							log.logForTcpConnectionTo(srcPeerId, peerId);
+						} else {
+							// The peer serves another swarm on that port
+							socket.close();
+						}
+						idx++;
+						outputStream.flush();
 					}
-					idx++;
-					outputStream.flush();
 				} catch (UnknownHostException uhe) {
 					// Handle unknown host exceptions.
 					uhe.printStackTrace();
@@ -108,113 +200,490 @@ public class peerProcess {
 
 
 
-	//This class Initiates TCP connections with subsequent peers by awaiting their connection requests and then exchanges handshake packets to establish communication.
-	class Server implements Runnable {
+	// This class accepts the TCP connections of every swarm on the shared port and hands each to the swarm named in its handshake.
+	static class Server implements Runnable {
 
 		@Override
 		public void run() {
-			int peerIndex = currPeerIdx;
 			try {
-				ServerSocket serverListener = new ServerSocket(srcPort);
-				// Continuously listen for incoming connections from peers starting after the current peer.
-				while (peerIndex < totalNoOfPeers - 1) {
-					Socket connectionSocket = serverListener.accept();
-					DataInputStream dataInput = new DataInputStream(connectionSocket.getInputStream());
-					DataOutputStream dataOutput = new DataOutputStream(connectionSocket.getOutputStream());
-
-					// Read the handshake packet sent by the connecting peer.
-					byte[] receivedHandshake = new byte[32];
-					dataInput.readFully(receivedHandshake);
-					int connectingPeerId = Integer.parseInt(new String(Arrays.copyOfRange(receivedHandshake, 28, 32)));
-
-					// Respond with a handshake packet to the connecting peer.
-					byte[] handshakeResponse = peerUtil.generateHandshakePacket(srcPeerId);
-					dataOutput.write(handshakeResponse);
-
-					// Retrieve the corresponding NeighborPeer object and establish a connection.
-					NeighborPeer connectedPeer = neighborPeers.get(connectingPeerId);
-					NeighbrConn connectionHandler = new NeighbrConn(connectionSocket, connectedPeer);
-					connectionHandler.initiateConnection();
-					neighbrConnMap.put(connectingPeerId, connectionHandler);
-					log.logForTcpConnectionFrom(srcPeerId, connectingPeerId);
-					peerIndex++;
+				// Continuously listen for incoming connections until the process shuts the listener down.
+				while (!listener.isClosed()) {
+					Socket connectionSocket = listener.accept();
+					try {
+						dispatchConnection(connectionSocket);
+					} catch (Exception e) {
+						// A malformed or stalled handshake only ends its own connection.
+						e.printStackTrace();
+						connectionSocket.close();
+					}
 				}
-			} catch (UnknownHostException uhe) {
-				// Handle exceptions related to unknown hosts.
-				uhe.printStackTrace();
 			} catch (IOException ioe) {
-				// Handle input/output exceptions.
-				ioe.printStackTrace();
+				// The listener was closed for shutdown.
+			}
+		}
+	}
+
+
+	/**
+	 * Reads the handshake of an incoming connection and hands the connection to the swarm it names.
+	 * A handshake without a content identifier is accepted while the process runs a single swarm.
+	 * Connections for a swarm that is not running here are closed.
+	 *
+	 * @param connectionSocket The accepted connection.
+	 * @throws Exception If the handshake cannot be read or the connection cannot be set up.
+	 */
+	private static void dispatchConnection(Socket connectionSocket) throws Exception {
+		DataInputStream dataInput = new DataInputStream(connectionSocket.getInputStream());
+
+		// Read the handshake packet sent by the connecting peer.
+		byte[] receivedHandshake = new byte[32];
+		connectionSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+		dataInput.readFully(receivedHandshake);
+		connectionSocket.setSoTimeout(0);
+		int connectingPeerId = Integer.parseInt(new String(Arrays.copyOfRange(receivedHandshake, 28, 32)));
+		int receivedContentId = PeerUtil.readContentId(receivedHandshake);
+
+		peerProcess swarm = swarms.get(receivedContentId);
+		if (receivedContentId == 0 && swarms.size() == 1) {
+			swarm = swarms.values().iterator().next();
+		}
+		if (swarm == null) {
+			connectionSocket.close();
+			return;
+		}
+		swarm.acceptConnection(connectionSocket, connectingPeerId);
+	}
+
+
+	/**
+	 * Answers the handshake of a peer of this swarm that connected to us and starts exchanging messages.
+	 * A peer that is not listed in this swarm's PeerInfo.cfg is turned away.
+	 *
+	 * @param connectionSocket The connection, with the handshake already read.
+	 * @param connectingPeerId The ID of the connecting peer.
+	 * @throws Exception If the connection cannot be set up.
+	 */
+	private void acceptConnection(Socket connectionSocket, int connectingPeerId) throws Exception {
+		// Retrieve the corresponding NeighborPeer object
+		NeighborPeer connectedPeer = neighborPeers.get(connectingPeerId);
+		if (connectedPeer == null) {
+			connectionSocket.close();
+			return;
+		}
+
+		// Respond with a handshake packet to the connecting peer.
+		DataOutputStream dataOutput = new DataOutputStream(connectionSocket.getOutputStream());
+		dataOutput.write(peerUtil.generateHandshakePacket(srcPeerId, contentId));
+
+		// Establish the connection.
+		PeerLink link = new PeerLink(connectionSocket, connectingPeerId, contentId);
+		NeighbrConn connectionHandler = new NeighbrConn(link, connectedPeer);
+		link.addSession(contentId, connectionHandler);
+		neighbrConnMap.put(connectingPeerId, connectionHandler);
+		link.start();
+		connectionHandler.initiateConnection();
+		log.logForTcpConnectionFrom(srcPeerId, connectingPeerId);
+	}
+
+
+	/**
+	 * Starts this swarm's session with a peer that joined it over a connection another swarm opened.
+	 * Runs on the connection's reader thread, so it only queues messages. A peer that is not listed
+	 * in this swarm's PeerInfo.cfg is turned away.
+	 *
+	 * @param link The connection the peer joined the swarm on.
+	 * @return The session, or null if the peer is not a neighbor in this swarm or the connection is closed.
+	 */
+	private NeighbrConn acceptSession(PeerLink link) {
+		NeighborPeer connectedPeer = neighborPeers.get(link.remotePeerId);
+		if (connectedPeer == null) {
+			return null;
+		}
+		NeighbrConn session = new NeighbrConn(link, connectedPeer);
+		if (!link.addSession(contentId, session)) {
+			return null;
+		}
+		neighbrConnMap.put(link.remotePeerId, session);
+		session.initiateConnection();
+		log.logForTcpConnectionFrom(srcPeerId, link.remotePeerId);
+		return session;
+	}
+
+
+	/**
+	 * The TCP connection to one remote peer process, shared by every swarm the two processes have in
+	 * common, so a process running many swarms keeps one connection per remote peer. The connection
+	 * starts with the handshake of one swarm. Another swarm joins it by sending its BITFIELD after a
+	 * SWARM message naming its content identifier; every message belongs to the swarm named last in
+	 * its direction, so a connection only one swarm uses carries no SWARM message at all. A swarm
+	 * leaves with a LEAVE message, which the other side answers with LEAVE, instead of closing the
+	 * socket. One reader thread hands every message to the session of its swarm, and one sender
+	 * thread writes the queued control messages between the pieces written by the upload workers.
+	 */
+	static class PeerLink {
+
+		// Open connections by the ID of the remote peer; a peer ID names the same process in every swarm, as ours does
+		private static final ConcurrentHashMap<Integer, PeerLink> links = new ConcurrentHashMap<>();
+		private static final ConcurrentHashMap<Integer, Object> connectLocks = new ConcurrentHashMap<>();  // Locks by the ID of the remote peer
+
+		final int remotePeerId;  // The ID of the remote peer
+		final Socket sock;  // The connection
+		final DataInputStream is;  // Read by the reader thread only
+		final DataOutputStream os;  // Written under wireLock
+		final Object wireLock = new Object();  // Held while a message is written, so pieces and control messages never interleave
+		private final LinkedBlockingQueue<Frame> outbox = new LinkedBlockingQueue<>();  // Control messages waiting for the sender thread
+		private final ConcurrentHashMap<Integer, NeighbrConn> sessions = new ConcurrentHashMap<>();  // Sessions by content identifier
+		private int sendingContentId;  // Swarm of the last message written; guarded by wireLock
+		private int receivingContentId;  // Swarm of the messages being read; used by the reader thread only
+		private boolean closed = false;  // Whether the connection has been closed; guarded by this
+		private Thread readerThread = null;  // Thread reading messages and handing them to the sessions
+		private Thread senderThread = null;  // Thread writing queued control messages
+
+
+		// A control message queued for a swarm.
+		private static class Frame {
+			final int contentId;
+			final byte[] msg;
+
+			Frame(int contentId, byte[] msg) {
+				this.contentId = contentId;
+				this.msg = msg;
+			}
+		}
+
+
+		/**
+		 * Wraps a connection whose handshake has been exchanged.
+		 *
+		 * @param sock The connection.
+		 * @param remotePeerId The ID of the remote peer.
+		 * @param contentId The swarm named in the handshake, which messages belong to until a SWARM message.
+		 * @throws IOException If the streams cannot be opened.
+		 */
+		PeerLink(Socket sock, int remotePeerId, int contentId) throws IOException {
+			this.sock = sock;
+			this.remotePeerId = remotePeerId;
+			this.is = new DataInputStream(sock.getInputStream());
+			this.os = new DataOutputStream(sock.getOutputStream());
+			this.sendingContentId = contentId;
+			this.receivingContentId = contentId;
+		}
+
+
+		// Returns an open connection to a peer, or null.
+		static PeerLink find(int peerId) {
+			return links.get(peerId);
+		}
+
+
+		// Returns the lock held while a connection to a peer is looked up or opened.
+		static Object connectLock(int peerId) {
+			return connectLocks.computeIfAbsent(peerId, id -> new Object());
+		}
+
+
+		/**
+		 * Adds the session of a swarm.
+		 *
+		 * @param contentId The content identifier of the swarm.
+		 * @param session The swarm's connection with the remote peer.
+		 * @return False if the connection has been closed.
+		 */
+		synchronized boolean addSession(int contentId, NeighbrConn session) {
+			if (closed) {
+				return false;
+			}
+			sessions.put(contentId, session);
+			return true;
+		}
+
+
+		// Starts the reader and sender threads and offers the connection to the other swarms.
+		void start() {
+			links.putIfAbsent(remotePeerId, this);
+			senderThread = new Thread(this::runSender, "SenderThread_" + remotePeerId);
+			senderThread.start();
+			readerThread = new Thread(this::runReader, "InteractionThread_" + remotePeerId);
+			readerThread.start();
+			System.out.println(readerThread.getName() + " started");
+		}
+
+
+		// Queues a control message of a swarm for the sender thread.
+		void queue(int contentId, byte[] msg) {
+			outbox.add(new Frame(contentId, msg));
+		}
+
+
+		/**
+		 * Writes a SWARM message if the next message belongs to another swarm than the last one written.
+		 * The caller holds wireLock.
+		 *
+		 * @param contentId The swarm of the next message.
+		 * @throws IOException If the connection is broken.
+		 */
+		void switchTo(int contentId) throws IOException {
+			if (contentId != sendingContentId) {
+				os.writeInt(5);
+				os.writeByte(Constants.TypeOfMessage.SWARM.getValue());
+				os.writeInt(contentId);
+				sendingContentId = contentId;
+			}
+		}
+
+
+		// Tells the remote peer that a session's swarm leaves the connection, once.
+		void leave(NeighbrConn session) {
+			if (session.leaveSent.compareAndSet(false, true)) {
+				queue(session.sessionId(), ByteBuffer.allocate(5).putInt(1).put((byte) Constants.TypeOfMessage.LEAVE.getValue()).array());
+			}
+		}
+
+
+		/**
+		 * Ends a session, telling the remote peer unless it was told already. The connection stays open
+		 * for the other swarms.
+		 *
+		 * @param session The session.
+		 */
+		void endSession(NeighbrConn session) {
+			if (sessions.remove(session.sessionId(), session)) {
+				leave(session);
+			}
+			session.ended.countDown();
+		}
+
+
+		// Sender loop: writes queued control messages between pieces, together with whatever else queued up meanwhile.
+		private void runSender() {
+			try {
+				while (true) {
+					Frame frame = outbox.take();
+					synchronized (wireLock) {
+						do {
+							switchTo(frame.contentId);
+							os.write(frame.msg);
+						} while ((frame = outbox.poll()) != null);
+						os.flush();
+					}
+				}
+			} catch (InterruptedException ie) {
+				// The connection was closed
+			} catch (IOException ex) {
+				close();  // Drop the connection if it is broken
+			}
+		}
+
+
+		// Reader loop: hands every message to the session of its swarm until the remote peer closes the connection.
+		private void runReader() {
+			byte[] header = new byte[5];
+			try {
+				while (true) {
+					// Retrieve the size and type of the incoming message; EOF ends the loop when the peer closes
+					is.readFully(header);
+					int size = ByteBuffer.wrap(header).getInt();
+					int m_type = header[4];
+					if (m_type == Constants.TypeOfMessage.SWARM.getValue() && size == 5) {
+						receivingContentId = is.readInt();
+						continue;
+					}
+					NeighbrConn session = sessions.get(receivingContentId);
+					// Every session starts with a BITFIELD; the peer joins one of our swarms over this connection
+					if (session == null && m_type == Constants.TypeOfMessage.BITFIELD.getValue()) {
+						session = openSession(receivingContentId);
+					}
+					if (session == null) {
+						// A message of a swarm that has left, or is not running here
+						skipFully(size - 1);
+					} else if (m_type == Constants.TypeOfMessage.LEAVE.getValue()) {
+						session.closeConnection();
+					} else {
+						session.handleMessage(size, m_type);
+					}
+				}
+			} catch (IOException e) {
+				// The remote peer closed the connection or it failed
+				System.out.println(remotePeerId + " Thread ended");
 			} catch (Exception e) {
-				// Handle any other exceptions.
-				e.printStackTrace();
+				// A failed message leaves the stream out of step, so the connection is dropped
+			} finally {
+				close();
+			}
+		}
+
+
+		// Starts the session of a swarm the remote peer joins, or turns it away with LEAVE.
+		private NeighbrConn openSession(int contentId) {
+			peerProcess swarm = swarms.get(contentId);
+			NeighbrConn session = (swarm == null) ? null : swarm.acceptSession(this);
+			if (session == null) {
+				queue(contentId, ByteBuffer.allocate(5).putInt(1).put((byte) Constants.TypeOfMessage.LEAVE.getValue()).array());
+			}
+			return session;
+		}
+
+
+		// Reads past the payload of a message that is not handled; called on the reader thread only.
+		void skipFully(int count) throws IOException {
+			while (count > 0) {
+				int skipped = is.skipBytes(count);
+				if (skipped == 0) {
+					is.readByte();  // Throws at the end of the stream
+					skipped = 1;
+				}
+				count -= skipped;
+			}
+		}
+
+
+		/**
+		 * Closes the connection and ends every session on it.
+		 */
+		void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			links.remove(remotePeerId, this);
+			for (NeighbrConn session : sessions.values()) {
+				session.closeConnection();
+			}
+			if (senderThread != null) {
+				senderThread.interrupt();
+			}
+			try {
+				sock.close();
+			} catch (IOException e) {
+				// Already closed
 			}
 		}
 	}
-	// This class manages the choking and unchoking of peers based on their download rates and interest status.
+
+
+	// This class manages the choking and unchoking of peers based on their transfer rates and interest status.
 	class ChokeManager implements Runnable {
 
-		// Sorts and returns a list of peers based on their download rates.
-		public List<Map.Entry<Integer, Integer>> getPeersBasedOnDwnldRt() {
-			List<Map.Entry<Integer, Integer>> orderedPList = new LinkedList<>(dwnldRate.entrySet());
-			Collections.sort(orderedPList, new Comparator<Map.Entry<Integer, Integer>>() {
-				public int compare(Map.Entry<Integer, Integer> o1, Map.Entry<Integer, Integer> o2) {
-					return o1.getValue().compareTo(o2.getValue());
+		// Sizes the unchoke slots from measured upload capacity when AdaptivePreferredNeighbors is on, otherwise null
+		private final UnchokeSlotController slotController = commCon.isAdaptivePreferredNeighbors()
+				? new UnchokeSlotController(commCon.getNumberOfNeighbors(), commCon.getMinPreferredNeighbors(),
+						commCon.getMaxPreferredNeighbors(), commCon.getMinUploadSlotRate(), commCon.getRateWindowSeconds())
+				: null;
+
+		// Returns the number of preferred neighbors to unchoke in this round.
+		private int preferredNeighborCount() {
+			if (slotController == null) {
+				return commCon.getNumberOfNeighbors();
+			}
+			long totalUploadRate = 0;
+			for (NeighbrConn conn : neighbrConnMap.values()) {
+				totalUploadRate += conn.uploadMeter.getRate();
+			}
+			return slotController.update(totalUploadRate, peersInterested.size());
+		}
+
+		/**
+		 * Picks the preferred neighbors among the interested peers. Local peers fill the slots first, except
+		 * for a bounded share kept for remote peers so every site stays connected; slots one group cannot
+		 * use go to the other. Within each group the peers with the highest recent rate win.
+		 *
+		 * @param candidates The interested peers.
+		 * @param k The number of preferred neighbors to pick.
+		 * @return The IDs of the selected peers.
+		 */
+		public List<Integer> selectPreferredNeighbors(List<Integer> candidates, int k) {
+			List<Integer> local = new ArrayList<>();
+			List<Integer> remote = new ArrayList<>();
+			for (int pId : candidates) {
+				NeighbrConn conn = neighbrConnMap.get(pId);
+				if (conn != null) {
+					(conn.quality.isLocal(commCon.getLocalRttMillis()) ? local : remote).add(pId);
 				}
-			});
-			return orderedPList;
+			}
+
+			int remoteReserve = Math.min(remote.size(), (int) Math.ceil(k * commCon.getRemoteUnchokeShare()));
+			int localSlots = Math.min(local.size(), k - remoteReserve);
+			List<Integer> selected = selectFastest(local, localSlots);
+			selected.addAll(selectFastest(remote, k - localSlots));
+			return selected;
+		}
+
+		/**
+		 * Picks the peers with the highest recent rate: the rate at which they send to us while we are
+		 * downloading, or the rate at which we upload to them once we have the complete file.
+		 * Uses a bounded min-heap, so only the k best candidates are ever ordered.
+		 *
+		 * @param candidates The peers to choose from.
+		 * @param k The number of peers to pick.
+		 * @return The IDs of the selected peers.
+		 */
+		private List<Integer> selectFastest(List<Integer> candidates, int k) {
+			if (k <= 0) {
+				return new ArrayList<>();
+			}
+			// Shuffling first makes ties, such as peers that have sent nothing yet, break randomly
+			List<Integer> shuffled = new ArrayList<>(candidates);
+			Collections.shuffle(shuffled);
+
+			PriorityQueue<long[]> best = new PriorityQueue<>(k + 1, Comparator.comparingLong(entry -> entry[1]));
+			for (int pId : shuffled) {
+				NeighbrConn conn = neighbrConnMap.get(pId);
+				if (conn == null) {
+					continue;
+				}
+				long rate = isCompleteFile ? conn.uploadMeter.getRate() : conn.downloadMeter.getRate();
+				if (best.size() < k) {
+					best.add(new long[] { pId, rate });
+				} else if (rate > best.peek()[1]) {
+					best.poll();
+					best.add(new long[] { pId, rate });
+				}
+			}
+
+			List<Integer> selected = new ArrayList<>(best.size());
+			for (long[] entry : best) {
+				selected.add((int) entry[0]);
+			}
+			return selected;
 		}
 
-		// The main execution method for the choke management thread.
+		// Recomputes the preferred neighbors; runs every unchoking interval and whenever requestChokeReevaluation() is called.
 		public void run() {
-			int unchokeTime = commCon.getUnchokingInterval();
 			try {
-				// Continuously manage choking and unchoking while not all peers have the complete file.
-				while (peersWithFullFile.get() < totalNoOfPeers) {
-					int intrstPSize = peersInterested.size();
-					if (intrstPSize > 0) {
-						int prefNeighbors = commCon.getNumberOfNeighbors();
-
-						// Unchoke a smaller number of peers if fewer than preferred are interested.
-						if (intrstPSize < prefNeighbors) {
-							for (int pId : peersInterested) {
-								peerProcess.NeighbrConn npiObj = neighbrConnMap.get(pId);
-								if (!npiObj.unchkd) {
-									npiObj.sendUnChokeMessage(false);
-								}
-							}
-						} else {
-							// Select and unchoke preferred peers based on download rates.
-							List<Map.Entry<Integer, Integer>> sortedPeersMapList = getPeersBasedOnDwnldRt();
-							List<Integer> tempPeersList = new ArrayList<>(peersInterested);
-							int[] prefPs = new int[prefNeighbors];
-							Random rand = new Random();
-
-							for (int i = 0; i < prefNeighbors; i++) {
-								int rndIdx = rand.nextInt(tempPeersList.size());
-								int pId = tempPeersList.remove(rndIdx);
-								prefPs[i] = pId;
-								peerProcess.NeighbrConn npiObj = neighbrConnMap.get(pId);
-								if (!npiObj.unchkd) {
-									npiObj.sendUnChokeMessage(false);
-								}
-							}
-
-							log.logForChangeOfPreferredNeighbors(srcPeerId, prefPs);
+				if (peersWithFullFile.get() >= totalNoOfPeers) {
+					return;
+				}
+				// With nobody interested the pass below still runs and chokes everyone; the slot controller
+				// is left alone, since an idle round says nothing about the upload capacity
+				int prefNeighbors = peersInterested.isEmpty() ? 0 : preferredNeighborCount();
+				List<Integer> preferred = selectPreferredNeighbors(new ArrayList<>(peersInterested), prefNeighbors);
+
+				// Unchoke the preferred peers and choke everyone else; peers already in that state get no message
+				for (Map.Entry<Integer, NeighbrConn> entry : neighbrConnMap.entrySet()) {
+					NeighbrConn npiObj = entry.getValue();
+					if (preferred.contains(entry.getKey())) {
+						npiObj.sendUnChokeMessage(false);
+					} else if (npiObj.unchkd) {
+						npiObj.sendChokeMessage();
+					}
+				}
 
-							// Choke peers not selected as preferred.
-							for (int peerId : tempPeersList) {
-								peerProcess.NeighbrConn npiObj = neighbrConnMap.get(peerId);
-								npiObj.sendChokeMessage();
-							}
-						}
+				if (!preferred.isEmpty()) {
+					int[] prefPs = new int[preferred.size()];
+					for (int i = 0; i < prefPs.length; i++) {
+						prefPs[i] = preferred.get(i);
+					}
+					if (slotController != null) {
+						log.logForChangeOfPreferredNeighbors(srcPeerId, prefPs, prefNeighbors);
+					} else {
+						log.logForChangeOfPreferredNeighbors(srcPeerId, prefPs);
 					}
-					TimeUnit.SECONDS.sleep(unchokeTime);
 				}
-			} catch (InterruptedException ie) {
-				// Handle interruption during sleep.
 			} catch (Exception e) {
-				// Handle other exceptions.
+				// A failed round must not cancel the periodic task
+				e.printStackTrace();
 			}
 		}
 	}
@@ -226,41 +695,80 @@ public class peerProcess {
 	 */
 	class NeighbrConn {
 		int peerId = -1;  // The ID of the connected neighbor peer
-		byte[] message = null;  // Buffer to hold incoming or outgoing messages
 		NeighborPeer peer = null;  // NeighborPeer object representing the connected peer
-		DataOutputStream os = null;  // Output stream to send data to the peer
-		DataInputStream is = null;  // Input stream to receive data from the peer
-		Socket sock = null;  // The socket representing the network connection to the peer
-		boolean unchkd = false;  // Flag indicating whether the peer is currently unchoked
+		PeerLink link = null;  // The connection to the peer, possibly shared with other swarms
+		DataOutputStream os = null;  // Output stream to send data to the peer, written under wireLock
+		DataInputStream is = null;  // Input stream to receive data from the peer, read by the link's reader thread
+		Object wireLock = null;  // The link's lock, held while a message is written
+		CountDownLatch ended = new CountDownLatch(1);  // Released once the session has ended
+		AtomicBoolean leaveSent = new AtomicBoolean(false);  // Whether LEAVE has been queued for the peer
+		boolean unchkd = false;  // Flag indicating whether the peer is currently unchoked as a preferred neighbor
+		boolean chokingRemote = true;  // Whether the last choke state sent to the peer was CHOKE (connections start choked)
+		boolean interestSent = false;  // Whether the last interest message sent to the peer was INTERESTED
+		RateMeter downloadMeter = new RateMeter(commCon.getRateWindowSeconds());  // Bytes received from the peer
+		RateMeter uploadMeter = new RateMeter(commCon.getRateWindowSeconds());  // Bytes sent to the peer
+		TokenBucket peerUploadBucket = new TokenBucket(limitsConfig.getPeerUploadLimit());  // Upload limit for this neighbor
+		TokenBucket peerDownloadBucket = new TokenBucket(limitsConfig.getPeerDownloadLimit());  // Download limit for this neighbor
+		ConcurrentLinkedQueue<Integer> pendingRequests = new ConcurrentLinkedQueue<>();  // Piece indices requested by the peer, not yet served
+		AtomicBoolean inUploadQueue = new AtomicBoolean(false);  // Whether the connection is waiting in uploadReadyQueue
+		PeerQuality quality = new PeerQuality();  // How well the peer serves our requests
+		AtomicLong reservedRequestBytes = new AtomicLong(0);  // Memory reserved for the piece we requested from the peer
+		byte[] sendBuffer = new byte[Constants.BANDWIDTH_SLICE_SIZE];  // Staging buffer for writing mapped pieces, used under wireLock
 
 
 		/**
-		 * Constructs a NeighbrConn object to manage the connection with a neighbor peer.
+		 * Constructs a NeighbrConn object to manage this swarm's session with a neighbor peer.
 		 *
-		 * @param sock The socket representing the connection to the neighbor.
+		 * @param link The connection to the neighbor.
 		 * @param peer The NeighborPeer object representing the connected peer.
-		 * @throws IOException If an I/O error occurs while setting up the streams.
 		 */
-		public NeighbrConn(Socket sock, NeighborPeer peer) throws IOException {
+		public NeighbrConn(PeerLink link, NeighborPeer peer) {
 			peerId = peer.getPeerId();
-			message = new byte[5];
-			is = new DataInputStream(sock.getInputStream());
-			os = new DataOutputStream(sock.getOutputStream());
-			this.sock = sock;
+			this.link = link;
+			is = link.is;
+			os = link.os;
+			wireLock = link.wireLock;
 			this.peer = peer;
 		}
 
 		/**
-		 * Creates and starts a new thread to handle the interaction with the neighbor peer.
+		 * Starts the session: sends the initial bitfield and the version it describes, then measures
+		 * the round-trip time. The link's reader thread hands the neighbor's messages to handleMessage.
+		 */
+		public void initiateConnection() {
+			sendBitF();
+			PieceManifest manifest = verifiedManifest.get();
+			if (manifest != null) {
+				sendManifestMessage(manifest.getRootHash());
+			}
+			sendPingMessage();
+		}
+
+
+		// The content identifier of the session's swarm.
+		int sessionId() {
+			return contentId;
+		}
+
+
+		/**
+		 * Queues a control message for the link's sender thread. Callers never wait for the socket or
+		 * for a piece being uploaded, so the timer thread and the disk writer cannot be held up by a
+		 * slow or throttled neighbor.
 		 *
-		 * @throws Exception If an error occurs in starting the thread.
+		 * @param msg The complete message.
+		 */
+		void queueMessage(byte[] msg) {
+			link.queue(contentId, msg);
+		}
+
+
+		/**
+		 * Queues the end of the session: the neighbor is told this swarm leaves once every message
+		 * queued before has been written, and answers the same way.
 		 */
-		public void initiateConnection() throws Exception {
-			// Create a new thread for handling neighbor peer interaction
-			PeerInteractionHandler interactionHandler = new PeerInteractionHandler();
-			Thread interactionThread = new Thread(interactionHandler, "InteractionThread_" + peer.getPeerId());
-			interactionThread.start();
-			System.out.println(interactionThread.getName() + " started");
+		void closeOutput() {
+			link.leave(this);
 		}
 
 
@@ -316,85 +824,20 @@ public class peerProcess {
 		}
 
 
-		/**
-		 * Converts an array of integers into a corresponding byte array.
-		 * Each integer is broken down into 4 bytes and stored sequentially in the byte array.
-		 *
-		 * @param intArray Array of integers to be converted.
-		 * @return Byte array representing the integers.
-		 */
-		public synchronized byte[] intTobyteArray(int[] intArray) {
-			// Allocate a ByteBuffer with enough space to store all integers (4 bytes per integer)
-			ByteBuffer byteBuf = ByteBuffer.allocate(intArray.length * 4);
-
-			// Create an IntBuffer to write the integers to the ByteBuffer
-			IntBuffer intBuf = byteBuf.asIntBuffer();
-
-			// Place the integers into the IntBuffer, automatically populating the ByteBuffer
-			intBuf.put(intArray);
-
-			// Convert the populated ByteBuffer into a byte array and return it
-			byte[] byteArray = byteBuf.array();
-			return byteArray;
-		}
-
-		/**
-		 * Converts a byte array into an array of integers.
-		 * Assumes that each integer is represented by 4 consecutive bytes in the byte array.
-		 *
-		 * @param byteArray Byte array to be converted into integers.
-		 * @return Array of integers derived from the byte array.
-		 */
-		public synchronized int[] byteTointArray(byte[] byteArray) {
-			int idx = 0; // Index for the resulting integer array
-			// Initialize an array to hold the integers (4 bytes per integer)
-			int[] intArray = new int[byteArray.length / 4];
-
-			// Iterate over the byte array in steps of 4 (size of an integer)
-			for (int i = 0; i < byteArray.length; i += 4) {
-				byte[] bit = new byte[4]; // Temporary array to hold 4 bytes
-
-				// Copy 4 bytes from the byteArray into 'bit'
-				System.arraycopy(byteArray, i, bit, 0, 4);
-
-				// Convert the 4 bytes into an integer and store in the integer array
-				intArray[idx] = ByteBuffer.wrap(bit).getInt();
-				idx++;
-			}
-			return intArray;
-		}
-
-
 		/**
 		 * Sends a bitfield message to a connected peer.
 		 * The bitfield message consists of the current state of the chunks (pieces of the file)
-		 * that the peer has. Each index in the bitfield represents a chunk, with the value indicating
-		 * whether the chunk is possessed (1) or not (0).
+		 * that the peer has, packed one bit per chunk.
 		 */
 		public synchronized void sendBitF() {
-			// Initialize an array to represent the bitfield
-			int[] bitF = new int[totalNoOfChunks];
-
-			// Populate the bitfield array from the current state in mapForBitField
-			int i = 0;
-			while (i < mapForBitField.size()) {
-				bitF[i] = mapForBitField.get(i);
-				i++;
-			}
-
-			// Convert the bitfield array to a byte array (payload for the message)
-			byte[] payload = intTobyteArray(bitF);
+			// Pack the pieces we have into the payload
+			byte[] payload = localBitfield.toBytes();
 
 			// Fetch the byte array message with the BITFIELD message type and payload
 			byte[] msg = fetchMessage(Constants.TypeOfMessage.BITFIELD.getValue(), payload);
 
-			// Attempt to send the message to the peer
-			try {
-				os.write(msg);  // Write the message to the output stream
-				os.flush();  // Ensure all data is sent by flushing the stream
-			} catch (IOException ex) {
-				ex.printStackTrace();  // Print the stack trace in case of an IOException
-			}
+			// Queue the message for the peer
+			queueMessage(msg);
 		}
 
 
@@ -406,13 +849,8 @@ public class peerProcess {
 			// Create a 'complete' message with no payload
 			byte[] msg = fetchMessage(Constants.TypeOfMessage.COMPLETE.getValue(), null);
 
-			// Attempt to send the message
-			try {
-				os.write(msg);  // Write the message to the output stream
-				os.flush();  // Ensure all data is sent by flushing the stream
-			} catch (IOException ex) {
-				System.exit(0);  // Exit if an IOException occurs
-			}
+			// Queue the message for the peer
+			queueMessage(msg);
 		}
 
 
@@ -422,19 +860,16 @@ public class peerProcess {
 		 * the list of unchoked peers.
 		 */
 		public synchronized void sendChokeMessage() {
-			// Check if the peer is not the optimistically unchoked peer
-			if (optUnchokedPeer.get() != peerId) {
+			// Check if the peer is not the optimistically unchoked peer and is not already choked
+			if (optUnchokedPeer.get() != peerId && !chokingRemote) {
+				chokingRemote = true;
+				// Requests queued before the choke will not be served
+				pendingRequests.clear();
 				// Create a 'choke' message with no payload
 				byte[] msg = fetchMessage(Constants.TypeOfMessage.CHOKE.getValue(), null);
 
-				// Attempt to send the 'choke' message
-				try {
-					os.write(msg);  // Write the 'choke' message to the output stream
-					os.flush();     // Ensure all data is sent by flushing the stream
-				} catch (IOException e) {
-					System.exit(0);  // Exit if an IOException occurs
-					e.printStackTrace();
-				}
+				// Queue the 'choke' message for the peer
+				queueMessage(msg);
 			}
 
 			// If the peer is currently unchoked, update its status and remove it from the unchoked peers list
@@ -456,16 +891,14 @@ public class peerProcess {
 		 * @param isOptimis Flag indicating whether the unchoking is optimistic.
 		 */
 		public synchronized void sendUnChokeMessage(boolean isOptimis) {
-			// Create an 'unchoke' message with no payload
-			byte[] msg = fetchMessage(Constants.TypeOfMessage.UNCHOKE.getValue(), null);
-
-			// Attempt to send the 'unchoke' message
-			try {
-				os.write(msg);  // Write the 'unchoke' message to the output stream
-				os.flush();     // Ensure all data is sent by flushing the stream
-			} catch (IOException e) {
-				System.exit(0);  // Exit if an IOException occurs
-				e.printStackTrace();
+			// Only send the 'unchoke' message if the peer is currently choked
+			if (chokingRemote) {
+				chokingRemote = false;
+				// Create an 'unchoke' message with no payload
+				byte[] msg = fetchMessage(Constants.TypeOfMessage.UNCHOKE.getValue(), null);
+
+				// Queue the 'unchoke' message for the peer
+				queueMessage(msg);
 			}
 
 			// If the unchoking is not optimistic, update the status of the peer and add it to the unchoked peers list
@@ -484,20 +917,21 @@ public class peerProcess {
 		 */
 		public synchronized boolean peerHasInterestingPieces() {
 			// Retrieve the bitfield of the connected peer
-			int[] peerBF = peer.getBitfield();
+			PieceBitfield peerBF = peer.getBitfield();
+			if (peerBF == null) {
+				return false;  // Its bitfield has not arrived yet
+			}
 
 			// Flag to indicate if the connected peer has interesting pieces
 			boolean intrstd = false;
 
-			// Iterate through each chunk to check if the connected peer has pieces that this peer doesn't have
-			int i = 0;
-			while (i < commCon.getNumberOfChunks()) {
-				// Check if this peer does not have the piece (mapForBitField value is 0) and the connected peer has it (peerBF value is 1)
-				if (mapForBitField.get(i) == 0 && peerBF[i] == 1) {
+			// Iterate through the chunks this peer is missing to check if the connected peer has one of them
+			for (int i = localBitfield.nextClearBit(0); i < totalNoOfChunks; i = localBitfield.nextClearBit(i + 1)) {
+				// Check if this peer still needs the piece and the connected peer has it
+				if (peerBF.get(i) && isPieceNeeded(i)) {
 					intrstd = true;  // Mark as interested
 					break;  // No need to check further as one interesting piece is found
 				}
-				i++;
 			}
 			return intrstd;  // Return the interest status
 		}
@@ -511,6 +945,8 @@ public class peerProcess {
 			// Determine if this peer is interested in any pieces of the connected peer
 			boolean isIntrstd = peerHasInterestingPieces();
 
+			interestSent = isIntrstd;
+
 			// Prepare the appropriate message based on the interest status
 			byte[] message;
 			if (isIntrstd)
@@ -518,13 +954,8 @@ public class peerProcess {
 			else
 				message = fetchMessage(Constants.TypeOfMessage.NOT_INTERESTED.getValue(), null);  // Create 'not interested' message
 
-			// Attempt to send the message
-			try {
-				os.write(message);  // Write the message to the output stream
-				os.flush();  // Ensure all data is sent by flushing the stream
-			} catch (IOException ex) {
-				ex.printStackTrace();  // Print the stack trace in case of an IOException
-			}
+			// Queue the message for the peer
+			queueMessage(message);
 		}
 
 
@@ -538,21 +969,52 @@ public class peerProcess {
 			// List to store indices of chunks that the connected peer has and this peer doesn't
 			List<Integer> chunksIndicesr = new ArrayList<>();
 			int randPieceIdx = -1;  // Default value indicating no chunk required
-			int i = 0;  // Index for iterating through chunks
 
 			// Get the bitfield of the connected peer
-			int[] peerBitF = peer.getBitfield();
+			PieceBitfield peerBitF = peer.getBitfield();
+			if (peerBitF == null) {
+				return randPieceIdx;  // Its bitfield has not arrived yet
+			}
 
-			// Iterate through all chunks to find those needed by this peer
-			while (i < totalNoOfChunks) {
-				// If this peer doesn't have the chunk (mapForBitField value is 0) and the connected peer has it (peerBitF value is 1)
-				if (mapForBitField.get(i) == 0 && peerBitF[i] == 1) {
-					chunksIndicesr.add(i);  // Add the index to the list
+			// Pieces a streaming reader is waiting on take priority over the random choice
+			for (int urgentIdx : urgentPieces) {
+				if (!localBitfield.get(urgentIdx) && peerBitF.get(urgentIdx)
+						&& (randPieceIdx == -1 || urgentIdx < randPieceIdx)) {
+					randPieceIdx = urgentIdx;
+				}
+			}
+			if (randPieceIdx != -1) {
+				return randPieceIdx;
+			}
+
+			// Pieces already requested from a well-behaved neighbor are only used when nothing else is left
+			List<Integer> requestedElsewhere = new ArrayList<>();
+
+			// A remote neighbor is first asked for pieces that no local neighbor can provide
+			List<PieceBitfield> localBitfields = isLocal() ? null : localNeighborBitfields();
+			List<Integer> availableLocally = new ArrayList<>();
+
+			// Iterate through the chunks this peer is missing to find those it still needs
+			for (int i = localBitfield.nextClearBit(0); i < totalNoOfChunks; i = localBitfield.nextClearBit(i + 1)) {
+				// If this peer still needs the chunk and the connected peer has it
+				if (peerBitF.get(i) && isPieceNeeded(i)) {
+					if (!isRequestableFrom(i, peerId)) {
+						requestedElsewhere.add(i);
+					} else if (localBitfields != null && hasPiece(localBitfields, i)) {
+						availableLocally.add(i);
+					} else {
+						chunksIndicesr.add(i);  // Add the index to the list
+					}
 				}
-				i++;
 			}
 
 			// If there are any chunks that this peer needs
+			if (chunksIndicesr.isEmpty()) {
+				chunksIndicesr = availableLocally;
+			}
+			if (chunksIndicesr.isEmpty()) {
+				chunksIndicesr = requestedElsewhere;
+			}
 			if (chunksIndicesr.size() > 0) {
 				Random rand = new Random();
 				int randIdx = rand.nextInt(chunksIndicesr.size());  // Choose a random index from the list
@@ -574,20 +1036,7 @@ public class peerProcess {
 
 			// If a chunk is needed (index is not -1)
 			if (randChunkIdx != -1) {
-				// Prepare a ByteBuffer to hold the index of the chunk
-				ByteBuffer byteBuf = ByteBuffer.allocate(4);
-				byte[] payload = byteBuf.putInt(randChunkIdx).array();  // Convert the index to a byte array
-
-				// Create a 'request' message with the chunk index as the payload
-				byte[] message = fetchMessage(Constants.TypeOfMessage.REQUEST.getValue(), payload);
-
-				// Attempt to send the 'request' message
-				try {
-					os.write(message);  // Write the message to the output stream
-					os.flush();         // Ensure all data is sent by flushing the stream
-				} catch (IOException ex) {
-					ex.printStackTrace();  // Print the stack trace in case of an IOException
-				}
+				sendRequestFor(randChunkIdx);
 			} else {
 				// If no chunk is needed, send an 'interested' or 'not interested' message
 				sendIntrstdOrNotMessage();
@@ -601,57 +1050,188 @@ public class peerProcess {
 		 *
 		 * @param pieceIdx The index of the piece to be sent.
 		 */
-		public synchronized void sendPieceMessage(int pieceIdx) {
+		public void sendPieceMessage(int pieceIdx) {
 			// Check if the peer is unchoked or optimistically unchoked and if this peer has the requested piece
-			if ((unchkd || (optUnchokedPeer.get() == peerId)) && mapForBitField.get(pieceIdx) == 1) {
+			if ((unchkd || (optUnchokedPeer.get() == peerId)) && localBitfield.get(pieceIdx)) {
+				long heldBytes = commCon.getChunkSize();
 				try {
-					ByteBuffer byteBuf = ByteBuffer.allocate(4); // Allocate a ByteBuffer for the piece index
-					byte[] piece = peerUtil.fetchChunk(srcPeerId, pieceIdx,commCon); // Retrieve the piece data
-					byte[] idx = byteBuf.putInt(pieceIdx).array(); // Convert the index to a byte array
-
-					// Create an array to hold both the index and the piece data
-					byte[] payload = new byte[idx.length + piece.length];
-					// Copy the index and piece data into the payload array
-					System.arraycopy(idx, 0, payload, 0, idx.length);
-					System.arraycopy(piece, 0, payload, idx.length, piece.length);
-
-					// Create a 'piece' message with the payload
-					byte[] pieceMessage = fetchMessage(Constants.TypeOfMessage.PIECE.getValue(), payload);
-					os.write(pieceMessage); // Write the message to the output stream
+					// Wait for room in the memory budget before the piece is read into memory
+					memoryGovernor.acquire(heldBytes);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				try {
+					ByteBuffer piece = peerUtil.fetchChunkBuffer(srcPeerId, pieceIdx, commCon); // Retrieve the piece data
+					int pieceLength = piece.remaining();
+
+					// Build only the header (length, type, index); the piece is written straight from its buffer
+					// instead of being copied into a payload and then into a whole message
+					byte[] header = ByteBuffer.allocate(9).putInt(5 + pieceLength)
+							.put((byte) Constants.TypeOfMessage.PIECE.getValue()).putInt(pieceIdx).array();
+					// Take the upload tokens slice by slice before taking the wire, so limited neighbors interleave
+					// fairly and a throttled piece never holds up the sender thread or the other swarms of the link
+					peerUploadBucket.acquire(header.length);
+					uploadBucket.acquire(header.length);
+					for (int off = 0; off < pieceLength; off += Constants.BANDWIDTH_SLICE_SIZE) {
+						int len = Math.min(Constants.BANDWIDTH_SLICE_SIZE, pieceLength - off);
+						peerUploadBucket.acquire(len);
+						uploadBucket.acquire(len);
+					}
+					// Only the write holds the wire; the disk read and the wait for tokens above do not block it
+					synchronized (wireLock) {
+						link.switchTo(contentId);
+						os.write(header);
+						while (piece.hasRemaining()) {
+							writeSlice(piece, Math.min(Constants.BANDWIDTH_SLICE_SIZE, piece.remaining()));
+						}
+						os.flush(); // Ensure all data is sent by flushing the stream
+					}
+					uploadedBytes.addAndGet(pieceLength);
 					log.logForSendPieceMessage(srcPeerId, peerId, pieceIdx); // Log the sending of the piece message
-					os.flush(); // Ensure all data is sent by flushing the stream
+					uploadMeter.record(pieceLength); // Count the upload for rate-based unchoking
 				} catch (IOException ex) {
-					ex.printStackTrace(); // Print the stack trace in case of an IOException
+					link.close();  // Drop the connection if it is broken
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				} finally {
+					memoryGovernor.release(heldBytes);
 				}
 			}
 		}
 
 
 		/**
-		 * Sends a 'have' message to the connected peer, indicating that this peer now has a specific piece of the file.
-		 *
-		 * @param pieceIdx The index of the piece that this peer now has.
+		 * Ends the session and removes the neighbor from every shared structure, so a broken or
+		 * departed neighbor only ends its own session instead of the whole process. The connection
+		 * stays open for the other swarms.
 		 */
-		public synchronized void sendHaveMessage(int pieceIdx) {
-			// Allocate a ByteBuffer to hold the index of the piece
-			ByteBuffer byteBuf = ByteBuffer.allocate(4);
-			byte[] payload = byteBuf.putInt(pieceIdx).array(); // Convert the index to a byte array
+		public void closeConnection() {
+			if (neighbrConnMap.remove(peerId, this)) {
+				peersInterested.remove((Integer) peerId);
+				peersUnchoked.remove((Integer) peerId);
+				optUnchokedPeer.compareAndSet(peerId, -1);
+				pendingRequests.clear();
+				releaseRequestsTo(peerId);
+				releaseRequestBuffer();
+				requestChokeReevaluation();
+			}
+			link.endSession(this);
+		}
 
-			// Create a 'have' message with the piece index as the payload
-			byte[] message = fetchMessage(Constants.TypeOfMessage.HAVE.getValue(), payload);
 
-			// Attempt to send the 'have' message
-			try {
-				os.write(message);  // Write the message to the output stream
-				os.flush();         // Ensure all data is sent by flushing the stream
-			} catch (IOException ex) {
-				ex.printStackTrace();  // Print the stack trace in case of an IOException
+		// Writes the next bytes of a piece; a mapped piece goes through a small reused buffer instead of a full heap copy.
+		private void writeSlice(ByteBuffer piece, int len) throws IOException {
+			if (piece.hasArray()) {
+				os.write(piece.array(), piece.arrayOffset() + piece.position(), len);
+				piece.position(piece.position() + len);
+			} else {
+				piece.get(sendBuffer, 0, len);
+				os.write(sendBuffer, 0, len);
+			}
+		}
+
+
+		// Returns the memory reserved for an unanswered request, once the piece will no longer arrive.
+		void releaseRequestBuffer() {
+			long reserved = reservedRequestBytes.getAndSet(0);
+			if (reserved > 0) {
+				memoryGovernor.release(reserved);
 			}
 		}
 
 
 		/**
-		 * Updates the bitfield of the connected peer based on receiving a 'have' message.
+		 * Queues a REQUEST from the peer for the upload pool, so the reader thread can go on reading
+		 * while the piece is fetched and written.
+		 *
+		 * @param pieceIdx The index of the requested piece.
+		 */
+		public void queueRequest(int pieceIdx) {
+			pendingRequests.add(pieceIdx);
+			if (inUploadQueue.compareAndSet(false, true)) {
+				uploadReadyQueue.add(this);
+			}
+		}
+
+
+		/**
+		 * Serves the oldest queued request and puts the connection back at the end of the ready queue if
+		 * more are waiting, so every neighbor with requests gets one piece per turn.
+		 */
+		void serveNextRequest() {
+			Integer pieceIdx = pendingRequests.poll();
+			if (pieceIdx != null) {
+				sendPieceMessage(pieceIdx);
+			}
+			if (!pendingRequests.isEmpty()) {
+				uploadReadyQueue.add(this);
+			} else {
+				inUploadQueue.set(false);
+				// A request may have arrived after the emptiness check; make sure it is not stranded
+				if (!pendingRequests.isEmpty() && inUploadQueue.compareAndSet(false, true)) {
+					uploadReadyQueue.add(this);
+				}
+			}
+		}
+
+
+		// Whether the neighbor is close to us on the network.
+		boolean isLocal() {
+			return quality.isLocal(commCon.getLocalRttMillis());
+		}
+
+
+		/**
+		 * Sends a 'ping' message carrying the current time, which the neighbor echoes in a 'pong' so the
+		 * round-trip time can be measured.
+		 */
+		public synchronized void sendPingMessage() {
+			byte[] payload = ByteBuffer.allocate(8).putLong(System.nanoTime()).array();
+			queueMessage(fetchMessage(Constants.TypeOfMessage.PING.getValue(), payload));
+		}
+
+
+		/**
+		 * Sends a 'manifest' message naming, by its root hash, the manifest of the version this peer shares.
+		 *
+		 * @param rootHash The root hash of the manifest.
+		 */
+		public synchronized void sendManifestMessage(byte[] rootHash) {
+			queueMessage(fetchMessage(Constants.TypeOfMessage.MANIFEST.getValue(), rootHash));
+		}
+
+
+		/**
+		 * Answers a 'ping' message by echoing its token in a 'pong' message.
+		 *
+		 * @param token The payload of the received 'ping'.
+		 */
+		public synchronized void sendPongMessage(byte[] token) {
+			queueMessage(fetchMessage(Constants.TypeOfMessage.PONG.getValue(), token));
+		}
+
+
+		/**
+		 * Sends a 'have' message to the connected peer, indicating that this peer now has a specific piece of the file.
+		 *
+		 * @param pieceIdx The index of the piece that this peer now has.
+		 */
+		public synchronized void sendHaveMessage(int pieceIdx) {
+			// Allocate a ByteBuffer to hold the index of the piece
+			ByteBuffer byteBuf = ByteBuffer.allocate(4);
+			byte[] payload = byteBuf.putInt(pieceIdx).array(); // Convert the index to a byte array
+
+			// Create a 'have' message with the piece index as the payload
+			byte[] message = fetchMessage(Constants.TypeOfMessage.HAVE.getValue(), payload);
+
+			// Queue the 'have' message for the peer
+			queueMessage(message);
+		}
+
+
+		/**
+		 * Updates the bitfield of the connected peer based on receiving a 'have' message.
 		 * If this peer does not have the piece indicated in the 'have' message,
 		 * a 'request' message for that piece is sent to the peer.
 		 *
@@ -659,27 +1239,52 @@ public class peerProcess {
 		 */
 		public synchronized void updateNeighbourBitF(int havePieceIdx) {
 			// Retrieve and update the connected peer's bitfield
-			int[] peer_bitfield = peer.getBitfield();
-			peer_bitfield[havePieceIdx] = 1;  // Mark the piece as available in the peer's bitfield
-			peer.setBitfield(peer_bitfield);
-
-			// Check if this peer does not have the piece indicated in the 'have' message
-			if (mapForBitField.get(havePieceIdx) == 0) {
-				// Prepare a ByteBuffer to hold the index of the piece
-				ByteBuffer byteBuf = ByteBuffer.allocate(4);
-				byte[] payload = byteBuf.putInt(havePieceIdx).array(); // Convert the index to a byte array
+			if (peer.getBitfield() == null) {
+				peer.setBitfield(new PieceBitfield(totalNoOfChunks));
+			}
+			peer.getBitfield().set(havePieceIdx);  // Mark the piece as available in the peer's bitfield
+
+			// Check if this peer still needs the piece indicated in the 'have' message
+			if (isPieceNeeded(havePieceIdx)) {
+				if (!quality.hasUnchokedUs()) {
+					// The peer would ignore a request while choking us; tell it we are interested instead
+					if (!interestSent) {
+						sendIntrstdOrNotMessage();
+					}
+				} else if (!quality.hasOutstandingRequest() && !quality.isSnubbed() && isRequestableFrom(havePieceIdx, peerId)) {
+					sendRequestFor(havePieceIdx);
+				}
+			}
+		}
 
-				// Create a 'request' message for the piece
-				byte[] message = fetchMessage(Constants.TypeOfMessage.REQUEST.getValue(), payload);
 
-				// Attempt to send the 'request' message
-				try {
-					os.write(message);  // Write the message to the output stream
-					os.flush();         // Ensure all data is sent by flushing the stream
-				} catch (IOException ie) {
-					ie.printStackTrace();  // Print the stack trace in case of an IOException
+		/**
+		 * Sends a 'request' message for the given piece and records it as in flight from this peer.
+		 * Nothing is sent if the memory budget has no room for the piece.
+		 *
+		 * @param pieceIdx The index of the piece to request.
+		 */
+		private synchronized void sendRequestFor(int pieceIdx) {
+			// Reserve room for the answer first; without room the request waits for the next quality check
+			if (reservedRequestBytes.get() == 0) {
+				if (!memoryGovernor.tryAcquire(commCon.getChunkSize())) {
+					return;
 				}
+				reservedRequestBytes.set(commCon.getChunkSize());
 			}
+
+			// Prepare a ByteBuffer to hold the index of the piece
+			ByteBuffer byteBuf = ByteBuffer.allocate(4);
+			byte[] payload = byteBuf.putInt(pieceIdx).array(); // Convert the index to a byte array
+
+			// Create a 'request' message for the piece
+			byte[] message = fetchMessage(Constants.TypeOfMessage.REQUEST.getValue(), payload);
+
+			piecesInFlight.put(pieceIdx, peerId);
+			quality.onRequestSent(pieceIdx);
+
+			// Queue the 'request' message for the peer
+			queueMessage(message);
 		}
 
 
@@ -688,22 +1293,9 @@ public class peerProcess {
 		 * Updates various states related to the peer's completion status.
 		 */
 		public synchronized void VerifyEntireFile() {
-			// Flag to indicate whether the connected peer has the complete file
-			boolean hasCompleteFile = true;
-
-			// Retrieve the bitfield of the connected peer to check each piece's status
-			int[] peerBitF = peer.getBitfield();
-
-			// Iterate through the peer's bitfield to check if all pieces are downloaded
-			int i = 0;
-			while (i < peerBitF.length) {
-				if (peerBitF[i] == 0) {
-					// If any piece is missing, set flag to false and break the loop
-					hasCompleteFile = false;
-					break;
-				}
-				i++;
-			}
+			// The connected peer has the complete file once its bitfield has every piece
+			PieceBitfield peerBF = peer.getBitfield();
+			boolean hasCompleteFile = peerBF != null && peerBF.isComplete();
 
 			// If the connected peer has the complete file
 			if (hasCompleteFile) {
@@ -725,12 +1317,9 @@ public class peerProcess {
 				peer.setHasFile(1);
 
 				// Update lists and counters if the peer was not previously marked as completed
-				if (!peersCompleted.contains(peerId)) {
-					// Set the peer's download rate to -1 and add it to the list of completed peers
-					dwnldRate.put(peerId, -1);
-					peersCompleted.add(peerId);
-					// Increment the count of peers with the complete file
-					peersWithFullFile.incrementAndGet();
+				if (markPeerCompleted(peerId)) {
+					// Its unchoke slot can go to another peer right away
+					requestChokeReevaluation();
 					System.out.println(peerId + " (neighbor) has finished downloading");
 				}
 
@@ -742,159 +1331,186 @@ public class peerProcess {
 		}
 
 
-		class PeerInteractionHandler implements Runnable {
-
-			public void run() {
-				// Initialize download rate for this peer to zero
-				dwnldRate.put(peerId, 0);
-				// Send initial bitfield message to connected peer
-				sendBitF();
+		/**
+		 * Handles one message of the neighbor in this swarm, reading its payload from the connection.
+		 * Called on the link's reader thread.
+		 *
+		 * @param size The length of the message, type included.
+		 * @param m_type The type of the message.
+		 * @throws Exception If the connection fails or the thread is interrupted.
+		 */
+		void handleMessage(int size, int m_type) throws Exception {
+			// Handle Bitfield message type
+			if (m_type == Constants.TypeOfMessage.BITFIELD.getValue()) {
+				byte[] bytes = new byte[size - 1];
+				is.readFully(bytes);
+				PieceBitfield peer_bit;
 				try {
-					// Continue processing messages until all peers have the complete file
-					while (peersWithFullFile.get() < totalNoOfPeers) {
-
-						// Retrieve the size of the incoming message
-						for (int i = 0; i < 4; i++) {
-							is.read(message, i, 1);
-						}
-						int size = ByteBuffer.wrap(message).getInt();
-
-						// Determine the type of the incoming message
-						is.read(message, 0, 1);
-						int m_type = message[0];
-
-						// Handle Bitfield message type
-						if (m_type == Constants.TypeOfMessage.BITFIELD.getValue()) {
-							byte[] bytes = new byte[size - 1];
-							for (int i = 0; i < size - 1; i++) {
-								is.read(bytes, i, 1);
-							}
-							int[] peer_bit = byteTointArray(bytes);
-							peer.setBitfield(peer_bit);
-							// Check if the peer has the complete file
-							boolean hasCompleteFile = true;
-							for (int i = 0; i < peer_bit.length; i++) {
-								if (peer_bit[i] == 0) {
-									hasCompleteFile = false;
-									break;
-								}
-							}
-							// Update file completion status and send interested message if necessary
-							if (hasCompleteFile && !peersCompleted.contains(peerId)) {
-								peer.setHasFile(1);
-								peersCompleted.add(peerId);
-								peersWithFullFile.incrementAndGet();
-								System.out.println(peerId + " has the full file");
-								sendIntrstdOrNotMessage();
-							}
-						}
-						// Process Interested message type
-						else if (m_type == Constants.TypeOfMessage.INTERESTED.getValue()) {
-							peersInterested.addIfAbsent(peerId);
-							log.logForReceivingInterestedMessage(srcPeerId, peerId);
-						}
-						// Handle Not Interested message type
-						else if (m_type == Constants.TypeOfMessage.NOT_INTERESTED.getValue()) {
-							int idx = peersInterested.indexOf(peerId);
-							if (idx != -1) {
-								log.logForReceivingNotInterestedMessage(srcPeerId, peerId);
-								peersInterested.remove(idx);
-							}
-							if (peerId == optUnchokedPeer.get()) {
-								optUnchokedPeer.set(-1);
-							}
-							sendChokeMessage();
-						}
-						// Process Choke message type
-						else if (m_type == Constants.TypeOfMessage.CHOKE.getValue()) {
-							log.logForChoking(srcPeerId, peerId);
-						}
-						// Handle Unchoke message type
-						else if (m_type == Constants.TypeOfMessage.UNCHOKE.getValue()) {
-							log.logForUnchoking(srcPeerId, peerId);
-							sendRqsttMessage();
-						}
-						// Process Request message type
-						else if (m_type == Constants.TypeOfMessage.REQUEST.getValue()) {
-							peersInterested.addIfAbsent(peerId);
-							byte[] payload = new byte[size - 1];
-							for (int i = 0; i < size - 1; i++) {
-								is.read(payload, i, 1);
-							}
-							int idx_p = ByteBuffer.wrap(payload).getInt();
-							log.logForReceivingRequestMessage(srcPeerId, peerId, idx_p);
-							sendPieceMessage(idx_p);
-						}
-						// Handle Piece message type
-						else if (m_type == Constants.TypeOfMessage.PIECE.getValue()) {
-							byte[] piece = new byte[size - 5];
-							byte[] idxArray = new byte[4];
-							for (int i = 0; i < 4; i++) {
-								is.read(idxArray, i, 1);
-							}
-							int idxOfReceivedP = ByteBuffer.wrap(idxArray).getInt();
-							int dwnldRtPeer = dwnldRate.get(peerId);
-							dwnldRate.put(peerId, dwnldRtPeer + 1);
-							if (mapForBitField.get(idxOfReceivedP) == 0) {
-								mapForBitField.put(idxOfReceivedP, 1);
-								for (int i = 0; i < piece.length; i++) {
-									is.read(piece, i, 1);
-								}
-								peerUtil.saveChunk(srcPeerId, idxOfReceivedP, piece, commCon);
-								boolean haveICompleted = true;
-								int n0OfPIHave = 0;
-								for (Map.Entry<Integer, Integer> e : mapForBitField.entrySet()) {
-									if (e.getValue() == 0) {
-										haveICompleted = false;
-									} else {
-										n0OfPIHave++;
-									}
-								}
-								log.logForDownloadingAPiece(srcPeerId, peerId, idxOfReceivedP, n0OfPIHave);
-								if (haveICompleted && !peersCompleted.contains(srcPeerId)) {
-									peersCompleted.add(srcPeerId);
-									peersWithFullFile.incrementAndGet();
-									System.out.println(srcPeerId + " (I) have completed downloading");
-									isCompleteFile = true;
-									log.logforCompletionOfDownload(srcPeerId);
-									TimeUnit.SECONDS.sleep(2);
-									peerUtil.mixChunksIntoFile(srcPeerId, commCon);
-								} else if (!peersCompleted.contains(srcPeerId)) {
-									sendRqsttMessage();
-								}
-							}
-							for (Map.Entry<Integer, NeighbrConn> entry : neighbrConnMap.entrySet()) {
-								NeighbrConn npiObjAdjacentPeer = entry.getValue();
-								npiObjAdjacentPeer.sendHaveMessage(idxOfReceivedP);
-							}
-						}
-						// Process Have message type
-						else if (m_type == Constants.TypeOfMessage.HAVE.getValue()) {
-							byte[] idx = new byte[4];
-							for (int i = 0; i < 4; i++) {
-								is.read(idx, i, 1);
-							}
-							int havePIdx = ByteBuffer.wrap(idx).getInt();
-							if (havePIdx > -1) {
-								log.logForReceivingHaveMessage(srcPeerId, peerId, havePIdx);
-								updateNeighbourBitF(havePIdx);
-								VerifyEntireFile();
-							}
-						}
-						// Handle Complete message type
-						else if (m_type == Constants.TypeOfMessage.COMPLETE.getValue()) {
-							log.logForCompletionOfProcess();
-							System.exit(0);
-						}
+					peer_bit = PieceBitfield.fromBytes(bytes, totalNoOfChunks);
+				} catch (IllegalArgumentException e) {
+					// Treat the neighbor as having nothing until its 'have' messages say otherwise
+					quality.onProtocolError();
+					if (peer.getBitfield() == null) {
+						peer.setBitfield(new PieceBitfield(totalNoOfChunks));
 					}
-					System.out.println(peerId + " Thread ended");
-					System.out.println("No.of peers with complete file = " + peersWithFullFile.get());
-				} catch (IOException e) {
-					// Handle IOException
-				} catch (Exception e) {
-					// Handle other exceptions
+					return;
+				}
+				peer.setBitfield(peer_bit);
+				// Check if the peer has the complete file
+				boolean hasCompleteFile = peer_bit.isComplete();
+				// Update file completion status and send interested message if necessary
+				if (hasCompleteFile && !peersCompleted.contains(peerId)) {
+					peer.setHasFile(1);
+					markPeerCompleted(peerId);
+					System.out.println(peerId + " has the full file");
+					sendIntrstdOrNotMessage();
+				}
+			}
+			// Process Interested message type
+			else if (m_type == Constants.TypeOfMessage.INTERESTED.getValue()) {
+				if (peersInterested.addIfAbsent(peerId)) {
+					requestChokeReevaluation();
+				}
+				log.logForReceivingInterestedMessage(srcPeerId, peerId);
+			}
+			// Handle Not Interested message type
+			else if (m_type == Constants.TypeOfMessage.NOT_INTERESTED.getValue()) {
+				int idx = peersInterested.indexOf(peerId);
+				if (idx != -1) {
+					log.logForReceivingNotInterestedMessage(srcPeerId, peerId);
+					peersInterested.remove(idx);
+					requestChokeReevaluation();
+				}
+				if (peerId == optUnchokedPeer.get()) {
+					optUnchokedPeer.set(-1);
+				}
+				sendChokeMessage();
+			}
+			// Process Choke message type
+			else if (m_type == Constants.TypeOfMessage.CHOKE.getValue()) {
+				log.logForChoking(srcPeerId, peerId);
+				// A choking peer drops our pending request, so let other neighbors fetch that piece
+				quality.onChokeStateChanged(false);
+				releaseRequestsTo(peerId);
+				releaseRequestBuffer();
+			}
+			// Handle Unchoke message type
+			else if (m_type == Constants.TypeOfMessage.UNCHOKE.getValue()) {
+				log.logForUnchoking(srcPeerId, peerId);
+				quality.onChokeStateChanged(true);
+				sendRqsttMessage();
+			}
+			// Process Request message type
+			else if (m_type == Constants.TypeOfMessage.REQUEST.getValue()) {
+				peersInterested.addIfAbsent(peerId);
+				byte[] payload = new byte[size - 1];
+				is.readFully(payload);
+				int idx_p = ByteBuffer.wrap(payload).getInt();
+				if (idx_p < 0 || idx_p >= totalNoOfChunks) {
+					quality.onProtocolError();
+					return;
+				}
+				log.logForReceivingRequestMessage(srcPeerId, peerId, idx_p);
+				queueRequest(idx_p);
+			}
+			// Handle Piece message type
+			else if (m_type == Constants.TypeOfMessage.PIECE.getValue()) {
+				// The buffer was reserved when the piece was requested; an unrequested piece is counted as it arrives
+				long heldBytes = reservedRequestBytes.getAndSet(0);
+				if (heldBytes == 0) {
+					heldBytes = size - 5;
+					memoryGovernor.acquireNow(heldBytes);
+				}
+				byte[] piece = new byte[size - 5];
+				byte[] idxArray = new byte[4];
+				int idxOfReceivedP;
+				boolean handedToWriter = false;
+				try {
+					is.readFully(idxArray);
+					idxOfReceivedP = ByteBuffer.wrap(idxArray).getInt();
+					// Always consume the payload so a duplicate piece does not desynchronize the stream,
+					// taking download tokens per slice so a limit slows the sender through TCP flow control
+					for (int off = 0; off < piece.length; off += Constants.BANDWIDTH_SLICE_SIZE) {
+						int len = Math.min(Constants.BANDWIDTH_SLICE_SIZE, piece.length - off);
+						peerDownloadBucket.acquire(len);
+						downloadBucket.acquire(len);
+						is.readFully(piece, off, len);
+					}
+					downloadMeter.record(piece.length);
+					(isLocal() ? localDownloadedBytes : remoteDownloadedBytes).addAndGet(piece.length);
+					if (idxOfReceivedP < 0 || idxOfReceivedP >= totalNoOfChunks) {
+						quality.onProtocolError();
+						return;
+					}
+					quality.onPieceReceived(idxOfReceivedP);
+					piecesInFlight.remove(idxOfReceivedP);
+					// The writer marks the piece as present once it is stored and keeps the buffer counted until then
+					if (isPieceNeeded(idxOfReceivedP) && piecesBeingWritten.add(idxOfReceivedP)) {
+						final int writtenIdx = idxOfReceivedP;
+						final long writtenBytes = heldBytes;
+						pieceWriter.submit(writtenIdx, piece, written -> onPieceWritten(writtenIdx, peerId, written, writtenBytes));
+						handedToWriter = true;
+					}
+				} finally {
+					// A duplicate or malformed piece is discarded; free its room before asking for the next one
+					if (!handedToWriter) {
+						memoryGovernor.release(heldBytes);
+					}
+				}
+				if (!peersCompleted.contains(srcPeerId)) {
+					sendRqsttMessage();
+				}
+			}
+			// Process Have message type
+			else if (m_type == Constants.TypeOfMessage.HAVE.getValue()) {
+				byte[] idx = new byte[4];
+				is.readFully(idx);
+				int havePIdx = ByteBuffer.wrap(idx).getInt();
+				if (havePIdx > -1 && havePIdx < totalNoOfChunks) {
+					log.logForReceivingHaveMessage(srcPeerId, peerId, havePIdx);
+					updateNeighbourBitF(havePIdx);
+					VerifyEntireFile();
+				} else {
+					quality.onProtocolError();
+				}
+			}
+			// Handle Complete message type
+			else if (m_type == Constants.TypeOfMessage.COMPLETE.getValue()) {
+				// The neighbor has seen every peer finish
+				swarmCompleted.countDown();
+				checkSeedingPolicy();
+			}
+			// Echo a round-trip time probe
+			else if (m_type == Constants.TypeOfMessage.PING.getValue()) {
+				byte[] token = new byte[size - 1];
+				is.readFully(token);
+				sendPongMessage(token);
+			}
+			// Answer to our probe: the echoed token is the time the 'ping' was sent
+			else if (m_type == Constants.TypeOfMessage.PONG.getValue()) {
+				byte[] token = new byte[size - 1];
+				is.readFully(token);
+				if (token.length == 8) {
+					quality.onRttSample(System.nanoTime() - ByteBuffer.wrap(token).getLong());
+				} else {
+					quality.onProtocolError();
+				}
+			}
+			// The neighbor names the manifest of the version it shares
+			else if (m_type == Constants.TypeOfMessage.MANIFEST.getValue()) {
+				byte[] rootHash = new byte[size - 1];
+				is.readFully(rootHash);
+				if (rootHash.length == PieceManifest.ROOT_HASH_SIZE) {
+					onManifestAnnounced(rootHash);
+				} else {
+					quality.onProtocolError();
 				}
 			}
+			// Skip the payload of anything unrecognized so the stream stays in sync
+			else {
+				quality.onProtocolError();
+				link.skipFully(size - 1);
+			}
 		}
 
 
@@ -903,55 +1519,746 @@ public class peerProcess {
 	// Manages the optimistic unchoking of peers in a peer-to-peer network.
 	class OptimisticChokeManager implements Runnable {
 
+		/**
+		 * Picks a random candidate, weighting each by its quality as a source of pieces. Every candidate keeps
+		 * a base weight so newcomers without history still get a chance; snubbing neighbors keep only a fraction of it.
+		 *
+		 * @param candidates The choked, interested peers.
+		 * @return The ID of the chosen peer.
+		 */
+		private int pickWeightedByQuality(List<Integer> candidates) {
+			double[] weights = new double[candidates.size()];
+			double maxScore = 0;
+			for (int i = 0; i < weights.length; i++) {
+				NeighbrConn conn = neighbrConnMap.get(candidates.get(i));
+				weights[i] = conn.quality.score(conn.downloadMeter.getRate());
+				maxScore = Math.max(maxScore, weights[i]);
+			}
+			double total = 0;
+			for (int i = 0; i < weights.length; i++) {
+				NeighbrConn conn = neighbrConnMap.get(candidates.get(i));
+				weights[i] = conn.quality.isSnubbed() ? 0.25 : 1 + ((maxScore > 0) ? weights[i] / maxScore : 0);
+				total += weights[i];
+			}
+			double pick = new Random().nextDouble() * total;
+			for (int i = 0; i < weights.length; i++) {
+				pick -= weights[i];
+				if (pick < 0) {
+					return candidates.get(i);
+				}
+			}
+			return candidates.get(candidates.size() - 1);
+		}
+
+		// Rotates the optimistically unchoked peer; runs once per optimistic unchoking interval on the scheduler.
 		public void run() {
 			try {
-				// Continuously check and manage optimistic unchoking until all peers have the complete file.
-				while (peersWithFullFile.get() < totalNoOfPeers) {
-					// Proceed only if there are interested peers.
-					if (!peersInterested.isEmpty()) {
-						// Determine the interval for optimistic unchoking.
-						int optSleepTime = commCon.getOptimisticUnchokingInterval();
-						Random rand = new Random();
-
-						// Randomly select a peer from the list of interested peers.
-						int pId = peersInterested.get(rand.nextInt(peersInterested.size()));
-						optUnchokedPeer.set(pId);
-
-						// Retrieve the connection object for the selected peer and send an unchoke message.
-						NeighbrConn nconnObj = neighbrConnMap.get(pId);
-						nconnObj.sendUnChokeMessage(true);
-
-						// Log the event of changing the optimistically unchoked neighbor.
-						log.logForChangeOfOptimisticallyUnchokedNeighbor(srcPeerId, pId);
-
-						// Sleep for the specified optimistic unchoking interval.
-						TimeUnit.SECONDS.sleep(optSleepTime);
-
-						// Reset the optimistically unchoked peer.
-						optUnchokedPeer.set(-1);
-
-						// Choke the peer if it is only optimistically unchoked and not already unchoked.
-						if (!nconnObj.unchkd) {
-							nconnObj.sendChokeMessage();
-						}
+				// Choke the previous optimistic peer unless it has since become a preferred neighbor.
+				int previous = optUnchokedPeer.getAndSet(-1);
+				if (previous != -1) {
+					NeighbrConn previousConn = neighbrConnMap.get(previous);
+					if (previousConn != null && !previousConn.unchkd) {
+						previousConn.sendChokeMessage();
 					}
 				}
-			} catch (InterruptedException ie) {
-				// Handle any interruptions during the sleep period.
+
+				// Select a peer among the interested peers that are currently choked, favoring good sources.
+				List<Integer> candidates = new ArrayList<>();
+				for (int pId : peersInterested) {
+					NeighbrConn conn = neighbrConnMap.get(pId);
+					if (conn != null && !conn.unchkd) {
+						candidates.add(pId);
+					}
+				}
+				if (!candidates.isEmpty()) {
+					int pId = pickWeightedByQuality(candidates);
+					optUnchokedPeer.set(pId);
+
+					// Retrieve the connection object for the selected peer and send an unchoke message.
+					neighbrConnMap.get(pId).sendUnChokeMessage(true);
+
+					// Log the event of changing the optimistically unchoked neighbor.
+					log.logForChangeOfOptimisticallyUnchokedNeighbor(srcPeerId, pId);
+				}
+			} catch (Exception e) {
+				// A failed rotation must not cancel the periodic task
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 * Asks the scheduler to recompute the preferred neighbors now instead of at the next unchoking interval.
+	 * Requests made while one is already pending are merged into it.
+	 */
+	private void requestChokeReevaluation() {
+		if (scheduler != null && chokeReevaluationPending.compareAndSet(false, true)) {
+			scheduler.execute(() -> {
+				chokeReevaluationPending.set(false);
+				chokeManager.run();
+			});
+		}
+	}
+
+
+	// Advances the sliding windows of all rate meters; runs once a second on the scheduler.
+	private void rollRateMeters() {
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			conn.downloadMeter.roll();
+			conn.uploadMeter.roll();
+		}
+	}
+
+
+	/**
+	 * Checks whether a piece may be requested from the given neighbor: it is not already requested
+	 * from another neighbor, unless that neighbor is snubbing us.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @param pId The ID of the neighbor that would be asked.
+	 * @return True if the piece can be requested from the neighbor.
+	 */
+	private boolean isRequestableFrom(int pieceIdx, int pId) {
+		Integer holder = piecesInFlight.get(pieceIdx);
+		if (holder == null || holder == pId) {
+			return true;
+		}
+		NeighbrConn holderConn = neighbrConnMap.get(holder);
+		return holderConn == null || holderConn.quality.isSnubbed();
+	}
+
+
+	// Returns the bitfields of the neighbors that are local to us.
+	private List<PieceBitfield> localNeighborBitfields() {
+		List<PieceBitfield> bitfields = new ArrayList<>();
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			PieceBitfield bitfield = conn.peer.getBitfield();
+			if (bitfield != null && conn.isLocal()) {
+				bitfields.add(bitfield);
+			}
+		}
+		return bitfields;
+	}
+
+
+	// Checks whether any of the given bitfields has the piece.
+	private static boolean hasPiece(List<PieceBitfield> bitfields, int pieceIdx) {
+		for (PieceBitfield bitfield : bitfields) {
+			if (bitfield.get(pieceIdx)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	// Measures the round-trip time to every neighbor; runs on the scheduler.
+	private void probeRoundTripTimes() {
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			conn.sendPingMessage();
+		}
+	}
+
+
+	// Forgets every request outstanding to a neighbor so the pieces can be requested elsewhere.
+	private void releaseRequestsTo(int pId) {
+		piecesInFlight.entrySet().removeIf(entry -> entry.getValue() == pId);
+	}
+
+
+	/**
+	 * Expires unanswered requests, marks neighbors that have us unchoked but deliver nothing as snubbed,
+	 * and hands their pieces to idle neighbors that are ready to serve us. Runs once a second on the scheduler.
+	 */
+	private void checkNeighborQuality() {
+		if (isCompleteFile) {
+			return;
+		}
+		long timeoutNanos = TimeUnit.SECONDS.toNanos(commCon.getRequestTimeoutSeconds());
+		long snubNanos = TimeUnit.SECONDS.toNanos(commCon.getSnubTimeoutSeconds());
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			int expired = conn.quality.expireRequest(timeoutNanos);
+			if (expired != -1) {
+				piecesInFlight.remove(expired, conn.peerId);
+				conn.releaseRequestBuffer();
+			}
+			if (conn.quality.checkSnubbed(snubNanos)) {
+				log.logForSnubbedNeighbor(srcPeerId, conn.peerId);
+				releaseRequestsTo(conn.peerId);
+				conn.releaseRequestBuffer();
 			}
 		}
+
+		// Keep every neighbor that has us unchoked busy with one request
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			if (conn.quality.hasUnchokedUs() && !conn.quality.hasOutstandingRequest() && !conn.quality.isSnubbed()
+					&& conn.peer.getBitfield() != null && conn.peerHasInterestingPieces()) {
+				conn.sendRqsttMessage();
+			}
+		}
+	}
+
+
+	// Worker loop of the upload pool: takes the next neighbor with queued requests and serves one of them.
+	private static void runUploadWorker() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				uploadReadyQueue.take().serveNextRequest();
+			}
+		} catch (InterruptedException ie) {
+			// The pool is shutting down
+		}
+	}
+
+
+	// Re-reads the bandwidth limits from Common.cfg when the file has changed, so they can be changed while running; runs on the scheduler.
+	private void reloadBandwidthLimits() {
+		long modified = new File(commCon.getDirectory(), "Common.cfg").lastModified();
+		if (modified == limitsModified) {
+			return;
+		}
+		CommonConfigClass latest = CommonConfigClass.getConfigFileObject(fh.parseTheContent(commCon.getDirectory(), "Common.cfg"), commCon.getDirectory());
+		if (latest == null) {
+			return;  // Read again on the next run, the file may be half written
+		}
+		limitsModified = modified;
+		limitsConfig = latest;
+		// Only the first swarm's file sets the limits the swarms share
+		if (this == primarySwarm) {
+			uploadBucket.setRate(latest.getUploadLimit());
+			downloadBucket.setRate(latest.getDownloadLimit());
+		}
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			conn.peerUploadBucket.setRate(latest.getPeerUploadLimit());
+			conn.peerDownloadBucket.setRate(latest.getPeerDownloadLimit());
+		}
+	}
+
+
+	/**
+	 * Records that a peer has the complete file and releases the shutdown once every peer has it.
+	 *
+	 * @param peerId The ID of the peer, which may be this peer.
+	 * @return True if the peer was not already recorded as complete.
+	 */
+	private boolean markPeerCompleted(int peerId) {
+		if (!peersCompleted.addIfAbsent(peerId)) {
+			return false;
+		}
+		if (peerId == srcPeerId) {
+			completedAtNanos = System.nanoTime();
+		}
+		if (peersWithFullFile.incrementAndGet() >= totalNoOfPeers) {
+			swarmCompleted.countDown();
+		}
+		checkSeedingPolicy();
+		return true;
+	}
+
+
+	// Logs the time spent waiting on bandwidth limits, summed over the process-wide and per-neighbor buckets.
+	private void logBandwidthThrottling() {
+		long uploadMillis = uploadBucket.getThrottledMillis();
+		long downloadMillis = downloadBucket.getThrottledMillis();
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			uploadMillis += conn.peerUploadBucket.getThrottledMillis();
+			downloadMillis += conn.peerDownloadBucket.getThrottledMillis();
+		}
+		log.logForBandwidthThrottling(srcPeerId, uploadMillis, downloadMillis);
+	}
+
+
+	// Releases the shutdown once the seeding policy is satisfied; runs on events and once a second on the scheduler.
+	private void checkSeedingPolicy() {
+		if (seedingPolicy == null) {
+			return;
+		}
+		boolean selfComplete = peersCompleted.contains(srcPeerId);
+		long secondsSinceComplete = selfComplete ? TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - completedAtNanos) : 0;
+		if (seedingPolicy.isSeedingDone(selfComplete, secondsSinceComplete, uploadedBytes.get(),
+				commCon.getFileSize(), swarmCompleted.getCount() == 0)) {
+			seedingDone.countDown();
+		}
+	}
+
+
+	/**
+	 * Closes every connection gracefully. If the whole swarm is complete, neighbors are first told so with a
+	 * COMPLETE message; otherwise they only see the swarm leave and keep downloading from other peers.
+	 * Each neighbor is sent LEAVE, and the swarm waits only until each has answered with its own LEAVE,
+	 * bounded by a short deadline. The connections stay open for the other swarms.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the neighbors.
+	 */
+	private void shutDownConnections() throws InterruptedException {
+		boolean announceCompletion = swarmCompleted.getCount() == 0;
+		List<NeighbrConn> connections = new ArrayList<>(neighbrConnMap.values());
+		for (NeighbrConn conn : connections) {
+			if (announceCompletion) {
+				conn.sendTotalMsg();
+			}
+			conn.closeOutput();
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(announceCompletion ? 10 : 2);
+		for (NeighbrConn conn : connections) {
+			long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remainingMillis > 0) {
+				conn.ended.await(remainingMillis, TimeUnit.MILLISECONDS);
+			}
+			conn.closeConnection();
+		}
+	}
+
+
+	/**
+	 * Checks whether the given piece still has to be downloaded. A piece waiting for the disk writer
+	 * is not requested again. In erasure-coded mode a missing piece is no longer needed once its
+	 * stripe holds enough pieces to be decoded.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @return True if the piece should be requested from neighbors.
+	 */
+	private boolean isPieceNeeded(int pieceIdx) {
+		if (localBitfield.get(pieceIdx) || piecesBeingWritten.contains(pieceIdx)) {
+			return false;
+		}
+		if (!commCon.isErasureCoded()) {
+			return true;
+		}
+		int stripe = commCon.getStripeOfPiece(pieceIdx);
+		return piecesPerStripe.get(stripe) < commCon.getDataPiecesInStripe(stripe);
+	}
+
+
+	/**
+	 * Checks whether this peer holds enough pieces to produce the complete file:
+	 * every piece normally, or any decodable subset of every stripe in erasure-coded mode.
+	 *
+	 * @return True if the download can be finished.
+	 */
+	private boolean hasEnoughPieces() {
+		if (commCon.isErasureCoded()) {
+			for (int stripe = 0; stripe < piecesPerStripe.length(); stripe++) {
+				if (piecesPerStripe.get(stripe) < commCon.getDataPiecesInStripe(stripe)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return localBitfield.isComplete();
+	}
+
+
+	/**
+	 * Called by the disk writer once a received piece has been stored or failed to store. A stored
+	 * piece only now joins the bitfield and is announced, so neighbors and streaming readers never see
+	 * a piece that cannot be read back yet. Only the bookkeeping runs on the writer thread; the
+	 * announcement and the completion of the download are handed to the completion notifier, so the
+	 * writer goes straight on with the next write.
+	 *
+	 * @param pieceIdx The index of the piece.
+	 * @param fromPeerId The neighbor the piece came from.
+	 * @param written Whether the piece was stored.
+	 * @param heldBytes The memory reserved for the piece's buffer.
+	 */
+	private void onPieceWritten(int pieceIdx, int fromPeerId, boolean written, long heldBytes) {
+		memoryGovernor.release(heldBytes);
+		if (!written) {
+			// Let the piece be requested again
+			piecesBeingWritten.remove(pieceIdx);
+			return;
+		}
+		localBitfield.set(pieceIdx);
+		piecesBeingWritten.remove(pieceIdx);
+		urgentPieces.remove(pieceIdx);
+		StreamingFileChannel.signalPieceStored(localBitfield);
+		if (commCon.isErasureCoded()) {
+			piecesPerStripe.incrementAndGet(commCon.getStripeOfPiece(pieceIdx));
+		}
+		int piecesHeld = localBitfield.cardinality();
+		completionNotifier.execute(() -> announcePiece(pieceIdx, fromPeerId, piecesHeld));
+	}
+
+
+	// Logs and announces a stored piece, and completes the download with the last one; runs on the completion notifier.
+	private void announcePiece(int pieceIdx, int fromPeerId, int piecesHeld) {
+		if (fromPeerId != FROM_PIECE_STORE && fromPeerId != FROM_PREVIOUS_VERSION) {
+			log.logForDownloadingAPiece(srcPeerId, fromPeerId, pieceIdx, piecesHeld);
+		}
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			conn.sendHaveMessage(pieceIdx);
+		}
+		updateCompletedFiles(pieceIdx, pieceIdx);
+		try {
+			if (hasEnoughPieces() && !peersCompleted.contains(srcPeerId)) {
+				finishDownload();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Completes the local download: rebuilds any pieces left out by erasure coding, announces them
+	 * to the neighbors, and makes the final file available.
+	 *
+	 * @throws IOException If a piece cannot be rebuilt or the file cannot be written.
+	 */
+	private synchronized void finishDownload() throws IOException {
+		if (peersCompleted.contains(srcPeerId)) {
+			return;
+		}
+		if (commCon.isErasureCoded()) {
+			List<Integer> rebuilt = peerUtil.rebuildMissingPieces(srcPeerId, localBitfield, commCon);
+			for (int pieceIdx : rebuilt) {
+				localBitfield.set(pieceIdx);
+			}
+			StreamingFileChannel.signalPieceStored(localBitfield);
+			// Neighbors only see this peer as complete once they have a HAVE for every piece
+			for (NeighbrConn conn : neighbrConnMap.values()) {
+				for (int pieceIdx : rebuilt) {
+					conn.sendHaveMessage(pieceIdx);
+				}
+			}
+			updateCompletedFiles(0, totalNoOfChunks - 1);
+		}
+		System.out.println(srcPeerId + " (I) have completed downloading");
+		isCompleteFile = true;
+		// An older copy still waiting for the manifest is of no use any more
+		previousVersionFile().delete();
+		log.logforCompletionOfDownload(srcPeerId);
+		peerUtil.mixChunksIntoFile(srcPeerId, commCon);
+		// Count ourselves only once the file is assembled, so the shutdown cannot overtake the merge
+		markPeerCompleted(srcPeerId);
+	}
+
+
+	/**
+	 * Logs every file of a content set that a range of newly stored data pieces completes. Only the
+	 * files overlapping the range are checked, and a file is logged once however its pieces arrive.
+	 * Empty files hold no piece and are never logged.
+	 *
+	 * @param firstPieceIdx The first piece of the range.
+	 * @param lastPieceIdx The last piece of the range; parity pieces beyond the data are ignored.
+	 */
+	private void updateCompletedFiles(int firstPieceIdx, int lastPieceIdx) {
+		ContentLayout layout = commCon.getContentLayout();
+		if (layout == null || firstPieceIdx >= commCon.getNumberOfChunks()) {
+			return;
+		}
+		int chunkSize = commCon.getChunkSize();
+		lastPieceIdx = Math.min(lastPieceIdx, commCon.getNumberOfChunks() - 1);
+		for (int fileIdx = layout.fileAt((long) firstPieceIdx * chunkSize); fileIdx < layout.getNumberOfFiles() && layout.getOffset(fileIdx) <= (long) lastPieceIdx * chunkSize + chunkSize - 1; fileIdx++) {
+			int first = layout.firstPieceOf(fileIdx, chunkSize);
+			if (first < 0) {
+				continue;
+			}
+			if (localBitfield.nextClearBit(first) > layout.lastPieceOf(fileIdx, chunkSize) && completedFiles.set(fileIdx)) {
+				log.logForFileCompletion(srcPeerId, layout.getPath(fileIdx));
+			}
+		}
+	}
+
+
+	/**
+	 * Hashes the original file on a background thread and saves the manifest, unless the manifest on
+	 * disk was built from the file as it is now, so a seed starts serving without reading the whole
+	 * file first. The root hash is announced to the neighbors only once the manifest describing the
+	 * file is saved; until then leechers ignore whatever manifest is on disk, so an outdated one is
+	 * simply replaced. A file that changes while it is hashed gets no manifest, and leechers download
+	 * every piece.
+	 */
+	private void publishManifestInBackground() {
+		File sourceFile = new File(commCon.getDirectory(), commCon.getFile());
+		File manifestFile = PieceManifest.manifestFile(commCon);
+		try {
+			PieceManifest existing = PieceManifest.load(manifestFile);
+			if (existing != null && existing.matches(commCon) && existing.describes(sourceFile)) {
+				useVerifiedManifest(existing);
+				return;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Thread hasher = new Thread(() -> {
+			try {
+				PieceManifest built = PieceManifest.build(sourceFile, commCon);
+				if (!built.describes(sourceFile)) {
+					System.out.println(sourceFile + " changed while it was hashed; no manifest is published");
+					return;
+				}
+				built.save(manifestFile);
+				useVerifiedManifest(built);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, "Manifest thread");
+		hasher.setDaemon(true);
+		hasher.start();
+	}
+
+
+	// Returns where the copy of the file left by an earlier run is kept during the delta scan.
+	private File previousVersionFile() {
+		return new File(commCon.getDirectory(), "peer_" + srcPeerId + File.separator + commCon.getFile() + ".prev");
+	}
+
+
+	/**
+	 * Accepts the manifest next to Common.cfg once a neighbor announces its root hash, so a manifest
+	 * left over from another version of the file is never used. The first manifest accepted stays;
+	 * a peer that already has the file keeps its own.
+	 *
+	 * @param rootHash The root hash the neighbor announced.
+	 */
+	private void onManifestAnnounced(byte[] rootHash) {
+		if (isCompleteFile || verifiedManifest.get() != null) {
+			return;
+		}
+		try {
+			PieceManifest manifest = PieceManifest.load(PieceManifest.manifestFile(commCon));
+			// A missing or different manifest is not the announced version yet; a later announcement may find it
+			if (manifest != null && manifest.hasRootHash(rootHash) && manifest.matches(commCon)) {
+				useVerifiedManifest(manifest);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	/**
+	 * Makes a manifest of the version being shared the one this peer uses: its root hash is announced
+	 * to the neighbors, the host's piece store starts sharing pieces by its digests, and a copy of an
+	 * older version is scanned for the pieces it can supply. Both read stored data, so they run on a
+	 * thread of their own.
+	 *
+	 * @param manifest The manifest, built from the original file or matching an announced root hash.
+	 */
+	private void useVerifiedManifest(PieceManifest manifest) {
+		if (!verifiedManifest.compareAndSet(null, manifest)) {
+			return;
+		}
+		for (NeighbrConn conn : neighbrConnMap.values()) {
+			conn.sendManifestMessage(manifest.getRootHash());
+		}
+		PieceStore pieceStore = peerUtil.getPieceStore();
+		boolean reuse = !isCompleteFile && commCon.isDeltaSyncEnabled() && previousVersionFile().exists();
+		if (pieceStore != null || reuse) {
+			Thread worker = new Thread(() -> {
+				if (pieceStore != null) {
+					pieceStore.useManifest(manifest, localBitfield);
+				}
+				if (reuse) {
+					reusePreviousVersion(manifest);
+				}
+			}, "Verified manifest thread " + commCon.getFile());
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+
+	/**
+	 * Looks for the pieces of the new version in the copy of the file left in this peer's directory
+	 * by an earlier run and hands the ones still needed to the disk writer, as if they had been
+	 * downloaded. The copy is removed afterwards.
+	 *
+	 * @param manifest The verified manifest of the new version.
+	 */
+	private void reusePreviousVersion(PieceManifest manifest) {
+		File oldFile = previousVersionFile();
+		AtomicInteger reused = new AtomicInteger();
+		try {
+			manifest.findPieces(oldFile, (pieceIdx, data) -> {
+				if (!isPieceNeeded(pieceIdx) || !piecesBeingWritten.add(pieceIdx)) {
+					return;
+				}
+				memoryGovernor.acquireNow(data.length);
+				try {
+					pieceWriter.submit(pieceIdx, data, written -> onPieceWritten(pieceIdx, FROM_PREVIOUS_VERSION, written, data.length));
+				} catch (InterruptedException ie) {
+					// The swarm is shutting down
+					memoryGovernor.release(data.length);
+					piecesBeingWritten.remove(pieceIdx);
+					throw new IOException("Interrupted while reusing pieces", ie);
+				}
+				reused.incrementAndGet();
+			});
+			log.logForReusedPieces(srcPeerId, reused.get(), commCon.getNumberOfChunks());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			oldFile.delete();
+		}
+	}
+
+
+	// Queues a scan of the piece store unless one is already waiting; runs on the scheduler, which only triggers the scan.
+	private void triggerPieceStoreScan() {
+		if (pieceStoreScanQueued.compareAndSet(false, true)) {
+			pieceStoreTaker.execute(() -> {
+				pieceStoreScanQueued.set(false);
+				takePiecesFromStore();
+			});
+		}
+	}
+
+
+	/**
+	 * Hands the missing data pieces that other peers of this host have published to the disk writer,
+	 * as if they had been downloaded, so they are neither requested from neighbors nor sent over the
+	 * network. Runs on the swarm's piece store thread, so the index reads, digest checks and copies
+	 * never hold up the shared timer thread: only the part of the store's index appended since the
+	 * last run is read, and pieces are only read while the writer has room for them. Nothing is found
+	 * until the manifest of the version being shared is verified.
+	 */
+	private void takePiecesFromStore() {
+		PieceStore pieceStore = peerUtil.getPieceStore();
+		if (isCompleteFile || pieceStore.getManifest() == null) {
+			return;
+		}
+		int taken = 0;
+		try {
+			for (int pieceIdx : pieceStore.locatePieces()) {
+				// A piece on its way to the disk keeps its entry, so the storage can link it from the store
+				if (piecesBeingWritten.contains(pieceIdx)) {
+					continue;
+				}
+				if (!isPieceNeeded(pieceIdx)) {
+					pieceStore.forgetPiece(pieceIdx);
+					continue;
+				}
+				byte[] data = pieceStore.readStoredPiece(pieceIdx);
+				if (data == null || !piecesBeingWritten.add(pieceIdx)) {
+					continue;
+				}
+				final int storedIdx = pieceIdx;
+				final long heldBytes = data.length;
+				memoryGovernor.acquireNow(heldBytes);
+				if (!pieceWriter.trySubmit(storedIdx, data, written -> onPieceWritten(storedIdx, FROM_PIECE_STORE, written, heldBytes))) {
+					// The writer is busy; the rest waits for the next run
+					memoryGovernor.release(heldBytes);
+					piecesBeingWritten.remove(storedIdx);
+					break;
+				}
+				taken++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (taken > 0) {
+				log.logForPieceStorePieces(srcPeerId, taken);
+			}
+		}
+	}
+
+
+	/**
+	 * Opens a read-only channel over the shared file that can be used while it is still downloading.
+	 * Reads block until the pieces they cover have arrived, and pull those pieces ahead of the rest.
+	 *
+	 * @return A seekable channel positioned at the start of the file.
+	 */
+	public SeekableByteChannel openDownloadChannel() {
+		return new StreamingFileChannel(peerUtil, srcPeerId, commCon, localBitfield, urgentPieces);
+	}
+
+
+	/**
+	 * Returns the downloaded file of a swarm that keeps its pieces in memory, without copying it.
+	 *
+	 * @return A read-only buffer over the complete file, or null if the pieces are not kept in memory
+	 *         or the download has not completed.
+	 */
+	public ByteBuffer getDownloadedContent() {
+		MemoryStorage memoryStorage = peerUtil.getMemoryStorage();
+		if (memoryStorage == null || !isCompleteFile) {
+			return null;
+		}
+		return memoryStorage.getContent();
+	}
+
+
+	/**
+	 * Opens a sequential input stream over the shared file that can be used while it is still downloading.
+	 *
+	 * @return An input stream starting at the beginning of the file.
+	 */
+	public InputStream openDownloadStream() {
+		return Channels.newInputStream(openDownloadChannel());
+	}
+
+
+	/**
+	 * Copies the shared file, in order, to the StreamOutput file while it downloads, so its start can
+	 * be used before the download completes. Reads wait for the pieces they need and pull them ahead
+	 * of the rest. Once a download kept in memory is complete, the remainder is written straight from
+	 * memory.
+	 *
+	 * @param output The file to write.
+	 */
+	private void streamToOutput(File output) {
+		long fileSize = commCon.getFileSize();
+		long written = 0;
+		try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING); InputStream in = openDownloadStream()) {
+			byte[] buffer = new byte[commCon.getChunkSize()];
+			while (written < fileSize) {
+				ByteBuffer content = getDownloadedContent();
+				if (content != null) {
+					content.position((int) written);
+					while (content.hasRemaining()) {
+						written += out.write(content);
+					}
+					break;
+				}
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+				if (read < 0) {
+					break;
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+				while (chunk.hasRemaining()) {
+					written += out.write(chunk);
+				}
+			}
+			System.out.println(srcPeerId + " streamed " + written + " bytes to " + output);
+		} catch (IOException e) {
+			System.out.println(srcPeerId + " stopped streaming to " + output + " after " + written + " bytes");
+		}
+	}
+
+
+	// Waits for the copy to StreamOutput to reach the end of the file before the storage is closed.
+	private void awaitStream() throws InterruptedException {
+		if (streamThread != null) {
+			// A peer shutting down before its download completes stops the copy instead
+			if (!peersCompleted.contains(srcPeerId)) {
+				streamThread.interrupt();
+			}
+			streamThread.join();
+		}
 	}
 
 
 	// Configures peer information and updates the peer map
-	private static void configurePeerInformation(List<String> peerInfoLines) throws Exception {
+	private void configurePeerInformation(List<String> peerInfoLines) throws Exception {
 		totalNoOfPeers = 0;
 
 		for (String infoLine : peerInfoLines) {
 			int currentPeerId = Integer.parseInt(infoLine.split(" ")[0]);
 			if (currentPeerId == srcPeerId) {
 				currPeerIdx = totalNoOfPeers;
-				srcPort = Integer.parseInt(infoLine.split(" ")[2]);
+				int port = Integer.parseInt(infoLine.split(" ")[2]);
+				// Every swarm is reached through the one shared listener
+				if (srcPort != 0 && port != srcPort) {
+					throw new IllegalArgumentException("Peer " + srcPeerId + " listens on port " + srcPort
+							+ " in one swarm and " + port + " in " + commCon.getDirectory());
+				}
+				srcPort = port;
 				isCompleteFile = Integer.parseInt(infoLine.split(" ")[3]) == 1;
 
 			} else {
@@ -961,79 +2268,268 @@ public class peerProcess {
 			totalNoOfPeers++;
 		}
 		totalNoOfPeers = peerInfoLines.size();
+		if (currPeerIdx == -1) {
+			throw new IllegalArgumentException("Peer " + srcPeerId + " is not listed in " + commCon.getDirectory() + File.separator + "PeerInfo.cfg");
+		}
 	}
 
 
-	public static void main(String[] args) throws Exception {
-
-		srcPeerId = Integer.parseInt(args[0]);
+	/**
+	 * Loads the configuration of one swarm and opens its log.
+	 *
+	 * @param directory The directory holding the swarm's Common.cfg and PeerInfo.cfg.
+	 * @throws Exception If the configuration is missing or invalid.
+	 */
+	private peerProcess(File directory) throws Exception {
 		// Load common configuration settings
-		fh = FileHelper.getFileHelper();
-		List<String> commonConfigLines = fh.parseTheContent("Common.cfg");
-		commCon = CommonConfigClass.getConfigFileObject(commonConfigLines);
-		totalNoOfChunks = commCon.getNumberOfChunks();
+		limitsModified = new File(directory, "Common.cfg").lastModified();
+		commCon = CommonConfigClass.getConfigFileObject(fh.parseTheContent(directory, "Common.cfg"), directory);
+		if (commCon == null) {
+			throw new IllegalArgumentException("Missing or incomplete " + directory + File.separator + "Common.cfg");
+		}
+		limitsConfig = commCon;
+		contentId = commCon.getContentId();
+		totalNoOfChunks = commCon.getNumberOfPieces();
+		localBitfield = new PieceBitfield(totalNoOfChunks);
+		piecesPerStripe = new AtomicIntegerArray(commCon.getNumberOfStripes());
+		if (commCon.getContentLayout() != null) {
+			completedFiles = new PieceBitfield(commCon.getContentLayout().getNumberOfFiles());
+		}
 		peerUtil = new PeerUtil();
 
 		// Load peer information and initialize peer settings
-		List<String> peerInfoLines = fh.parseTheContent("PeerInfo.cfg");
+		List<String> peerInfoLines = fh.parseTheContent(directory, "PeerInfo.cfg");
 		configurePeerInformation(peerInfoLines);
 
 		// Set up logging and file directory for the peer
-		File peerLogFile = peerUtil.buildDirectoryAndLogFile(srcPeerId);
+		File peerLogFile = peerUtil.buildDirectoryAndLogFile(srcPeerId, directory);
 		log = new LoggingClass(peerLogFile);
 		log.readCommonCfgFile(srcPeerId, commCon);
+		seedingPolicy = SeedingPolicy.fromConfig(commCon);
+	}
+
+
+	/**
+	 * Opens the swarm's storage and restores what this peer already has: the complete file, the
+	 * verified pieces of an interrupted download or the unchanged pieces of an earlier version.
+	 *
+	 * @throws Exception If the storage cannot be opened or scanned.
+	 */
+	private void openSwarm() throws Exception {
+		// Keep a copy left by an earlier run aside for the delta scan, since the storage writes over it,
+		// unless a journal shows it is an interrupted download of this version that can be resumed
+		File peerDirectory = new File(commCon.getDirectory(), "peer_" + srcPeerId);
+		File localCopy = new File(peerDirectory, commCon.getFile());
+		boolean resumable = commCon.isResumeEnabled() && PieceJournal.matches(PieceJournal.journalFile(peerDirectory, commCon), commCon);
+		if (!isCompleteFile && commCon.isDeltaSyncEnabled() && localCopy.exists() && !resumable) {
+			Files.move(localCopy.toPath(), previousVersionFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		peerUtil.openStorage(srcPeerId, commCon, localBitfield, isCompleteFile);
+		pieceWriter = peerUtil.startWriter(commCon);
+		completionNotifier = Executors.newSingleThreadExecutor(task -> {
+			Thread thread = new Thread(task, "Completion notifier " + commCon.getFile());
+			thread.setDaemon(true);
+			return thread;
+		});
 
 		// Initialize bitfield and file chunks if the peer has the complete file
-		int fileStatusFlag = 0;
 		if (isCompleteFile && !peersCompleted.contains(srcPeerId)) {
-			peersCompleted.add(srcPeerId);
-			peersWithFullFile.incrementAndGet();
+			markPeerCompleted(srcPeerId);
 			System.out.println(srcPeerId + " (I) have the full file");
-			fileStatusFlag = 1;
-			peerUtil.divideFileIntoChunks("" + srcPeerId, commCon);
-			peerUtil.mixChunksIntoFile(srcPeerId, commCon);
+			localBitfield.setAll();
+			completedFiles.setAll();
+			for (int stripe = 0; stripe < piecesPerStripe.length(); stripe++) {
+				piecesPerStripe.set(stripe, commCon.getDataPiecesInStripe(stripe) + commCon.getErasureParityPieces());
+			}
+
+			// Publish piece hashes so peers holding an older version can tell which pieces are unchanged,
+			// and peers sharing a piece store can find pieces by their digest
+			if (commCon.isDeltaSyncEnabled() || (commCon.getPieceStoreDirectory() != null && commCon.getContentLayout() == null)) {
+				publishManifestInBackground();
+			}
 		}
 
-		// Set bitfield for all chunks
-		for (int i = 0; i < totalNoOfChunks; i++) {
-			mapForBitField.put(i, fileStatusFlag);
+		// Resume an interrupted download with the pieces that pass verification
+		if (!isCompleteFile) {
+			long recoveryStart = System.nanoTime();
+			PieceBitfield recovered = peerUtil.recoverPieces(commCon);
+			for (int pieceIdx = recovered.nextSetBit(0); pieceIdx >= 0; pieceIdx = recovered.nextSetBit(pieceIdx + 1)) {
+				localBitfield.set(pieceIdx);
+				if (commCon.isErasureCoded()) {
+					piecesPerStripe.incrementAndGet(commCon.getStripeOfPiece(pieceIdx));
+				}
+			}
+			if (resumable) {
+				log.logForResumedPieces(srcPeerId, recovered.cardinality(), totalNoOfChunks,
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recoveryStart));
+			}
+			updateCompletedFiles(0, totalNoOfChunks - 1);
+			if (hasEnoughPieces()) {
+				finishDownload();
+			}
 		}
 
-		peerProcess peerInstance = new peerProcess();
+	}
+
+
+	// Connects to the peers that started earlier and schedules the swarm's periodic work on the shared timer thread.
+	private void startSwarm() {
 		// Initialize network connections with other peers
-		Client clientHandler = peerInstance.new Client();
-		Thread clientThread = new Thread(clientHandler, "Client Thread");
+		Thread clientThread = new Thread(new Client(), "Client Thread " + commCon.getFile());
 		clientThread.start();
 
-		Server serverHandler = peerInstance.new Server();
-		Thread serverThread = new Thread(serverHandler, "Server Thread");
-		serverThread.start();
+		chokeManager = new ChokeManager();
+		optimisticChokeManager = new OptimisticChokeManager();
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(chokeManager, 0, commCon.getUnchokingInterval(), TimeUnit.SECONDS));
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(optimisticChokeManager, 0, commCon.getOptimisticUnchokingInterval(), TimeUnit.SECONDS));
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(this::rollRateMeters, 1, 1, TimeUnit.SECONDS));
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(this::reloadBandwidthLimits, 5, 5, TimeUnit.SECONDS));
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(this::checkNeighborQuality, 1, 1, TimeUnit.SECONDS));
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(this::checkSeedingPolicy, 1, 1, TimeUnit.SECONDS));
+		scheduledTasks.add(scheduler.scheduleAtFixedRate(this::probeRoundTripTimes, commCon.getRttProbeSeconds(),
+				commCon.getRttProbeSeconds(), TimeUnit.SECONDS));
+
+		// Copy the file to StreamOutput as it arrives
+		if (!isCompleteFile && commCon.getStreamOutput() != null) {
+			File streamOutput = new File(commCon.getDirectory(), "peer_" + srcPeerId).toPath().resolve(commCon.getStreamOutput()).toFile();
+			streamThread = new Thread(() -> streamToOutput(streamOutput), "Stream thread " + commCon.getFile());
+			streamThread.setDaemon(true);
+			streamThread.start();
+		}
+		System.out.println("Total Peers: " + totalNoOfPeers);
 
-		// Start choke management threads
-		ChokeManager chokeManager = peerInstance.new ChokeManager();
-		Thread chokeManagerThread = new Thread(chokeManager, "Choke thread");
-		chokeManagerThread.start();
+		// Keep taking the pieces that other peers of this host publish while we download
+		if (!isCompleteFile && peerUtil.getPieceStore() != null) {
+			pieceStoreTaker = Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "Piece store taker " + commCon.getFile());
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduledTasks.add(scheduler.scheduleAtFixedRate(this::triggerPieceStoreScan, 0, 1, TimeUnit.SECONDS));
+		}
+	}
 
-		OptimisticChokeManager optimisticChokeManager = peerInstance.new OptimisticChokeManager();
-		Thread optimisticChokeThread = new Thread(optimisticChokeManager, "Optimistic Choke thread");
-		optimisticChokeThread.start();
-		System.out.println("Total Peers: " + totalNoOfPeers);
 
-		// Monitor for completion of file download across all peers
-		while (true) {
-			TimeUnit.SECONDS.sleep(10);
-			if (peersWithFullFile.get() >= totalNoOfPeers) {
-				for (Entry<Integer, NeighbrConn> connectionEntry : neighbrConnMap.entrySet()) {
-					NeighbrConn adjacentPeerConnection = connectionEntry.getValue();
-					adjacentPeerConnection.sendTotalMsg();
-				}
+	/**
+	 * Keeps serving until the seeding policy is satisfied, then shuts the swarm down gracefully while
+	 * the other swarms of the process go on.
+	 *
+	 * @throws Exception If interrupted or the storage cannot be closed.
+	 */
+	private void runUntilSeedingDone() throws Exception {
+		seedingDone.await();
+		// Connections for this swarm are turned away from now on
+		swarms.remove(contentId, this);
+		for (ScheduledFuture<?> task : scheduledTasks) {
+			task.cancel(false);
+		}
+		logBandwidthThrottling();
+		log.logForLocalityTraffic(srcPeerId, localDownloadedBytes.get(), remoteDownloadedBytes.get());
+		shutDownConnections();
+		awaitStream();
+		log.logForMemoryUsage(srcPeerId, memoryGovernor.getPeakBytes(), memoryGovernor.getBudget(),
+				memoryGovernor.getWaitedMillis(), memoryGovernor.getDeferredRequests());
+		// A scan of the piece store may still be handing pieces to the writer
+		if (pieceStoreTaker != null) {
+			pieceStoreTaker.shutdown();
+			pieceStoreTaker.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		pieceWriter.close();
+		// The writer has handed over its last completions; let them finish before the storage closes
+		completionNotifier.shutdown();
+		completionNotifier.awaitTermination(1, TimeUnit.MINUTES);
+		log.logForDiskWriter(srcPeerId, pieceWriter.getSyncs(), pieceWriter.getCoalescedWrites());
+		if (peerUtil.getPieceCache() != null) {
+			PieceCache cache = peerUtil.getPieceCache();
+			log.logForPieceCache(srcPeerId, cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getBytesFromCache());
+		}
+		peerUtil.closeStorage();
+		log.logForCompletionOfProcess();
+	}
+
+
+	/**
+	 * Starts a peer. "java peerProcess peerId" runs the swarm described in the working directory;
+	 * "java peerProcess peerId dir1 dir2 ..." runs one swarm per directory in the same process, each
+	 * with its own Common.cfg and PeerInfo.cfg. This peer must have the same port in every PeerInfo.cfg.
+	 *
+	 * @param args The peer ID, followed by the swarm directories.
+	 * @throws Exception If a swarm cannot be set up.
+	 */
+	public static void main(String[] args) throws Exception {
 
-				TimeUnit.SECONDS.sleep(10);
-				System.out.println("Graceful exit initiated");
-				log.logForCompletionOfProcess();
-				System.exit(0);
+		srcPeerId = Integer.parseInt(args[0]);
+		fh = FileHelper.getFileHelper();
+		List<File> directories = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			directories.add(new File(args[i]).getAbsoluteFile());
+		}
+		if (directories.isEmpty()) {
+			directories.add(new File(System.getProperty("user.dir")));
+		}
+
+		// Load every swarm; they must be told apart by their content identifiers
+		List<peerProcess> swarmList = new ArrayList<>();
+		for (File directory : directories) {
+			peerProcess swarm = new peerProcess(directory);
+			for (peerProcess other : swarmList) {
+				if (other.contentId == swarm.contentId) {
+					throw new IllegalArgumentException(directory + " and " + other.commCon.getDirectory()
+							+ " have the same content identifier; set a distinct ContentId in one of them");
+				}
 			}
+			swarmList.add(swarm);
+		}
+		primarySwarm = swarmList.get(0);
+		CommonConfigClass processConfig = primarySwarm.commCon;
+
+		// The memory budget, bandwidth limits and upload workers are shared by all swarms
+		memoryGovernor = new MemoryGovernor(processConfig.getMemoryBudget());
+		uploadBucket.setRate(processConfig.getUploadLimit());
+		downloadBucket.setRate(processConfig.getDownloadLimit());
+
+		// Start the workers that serve REQUESTs off the reader threads
+		int uploadThreads = processConfig.getUploadThreads();
+		uploadPool = Executors.newFixedThreadPool(uploadThreads, task -> new Thread(task, "Upload thread"));
+		for (int i = 0; i < uploadThreads; i++) {
+			uploadPool.execute(peerProcess::runUploadWorker);
 		}
+
+		// Run choking, optimistic unchoking, rate window rolls and completion checks on one timer thread
+		scheduler = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, "Scheduler thread"));
+
+		for (peerProcess swarm : swarmList) {
+			swarm.openSwarm();
+			swarms.put(swarm.contentId, swarm);
+		}
+
+		// Accept the connections of all swarms on one port
+		listener = new ServerSocket(srcPort);
+		Thread serverThread = new Thread(new Server(), "Server Thread");
+		serverThread.start();
+
+		List<Thread> swarmThreads = new ArrayList<>();
+		for (peerProcess swarm : swarmList) {
+			swarm.startSwarm();
+			Thread swarmThread = new Thread(() -> {
+				try {
+					swarm.runUntilSeedingDone();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}, "Swarm thread " + swarm.commCon.getFile());
+			swarmThread.start();
+			swarmThreads.add(swarmThread);
+		}
+		for (Thread swarmThread : swarmThreads) {
+			swarmThread.join();
+		}
+
+		listener.close();
+		scheduler.shutdownNow();
+		uploadPool.shutdownNow();
+		System.out.println("Graceful exit initiated");
+		System.exit(0);
 	}
 
 